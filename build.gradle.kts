@@ -5,6 +5,7 @@ plugins {
   id("io.papermc.paperweight.userdev") version "2.0.0-beta.18"
   id("xyz.jpenilla.run-paper") version "3.0.0-beta.1"
   id("xyz.jpenilla.resource-factory-bukkit-convention") version "1.3.0"
+  id("me.champeau.jmh") version "0.7.3"
 }
 
 group = "io.github.rozefound"
@@ -35,6 +36,21 @@ dependencies {
   compileOnly("com.github.retrooper:packetevents-spigot:2.9.3")
 }
 
+// Benchmarks run headless: the server and PacketEvents are only needed on the classpath,
+// Bukkit objects like BlockData and World are replaced by stand-ins
+configurations.named("jmhImplementation") {
+  extendsFrom(configurations.compileOnly.get())
+}
+
+jmh {
+  benchmarkMode = listOf("thrpt")
+  timeUnit = "s"
+  profilers = listOf("gc")
+  fork = 1
+  warmupIterations = 3
+  iterations = 5
+}
+
 tasks {
   compileJava {
     options.release = 21
@@ -0,0 +1,54 @@
+package io.github.rozefound.packetbag.benchmark;
+
+import io.github.rozefound.packetbag.BorderRing;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Border geometry as laid out by the PlayerBoundsManager for a given view distance:
+ * building a whole border, and the delta when the player crosses into the next chunk.
+ */
+@State(Scope.Benchmark)
+public class BorderBenchmark {
+
+  @Param({ "4", "8", "12", "16" })
+  int viewDistance;
+
+  private BorderRing ring;
+  private BorderRing movedRing;
+
+  private int visited;
+
+  @Setup
+  public void setup() {
+
+    int radius = (viewDistance - 1) * 16;
+    int maxY = 72 + (int) (viewDistance * 16 * 0.75);
+
+    ring = new BorderRing(8, 8, radius, -64, maxY);
+    movedRing = new BorderRing(24, 8, radius, -64, maxY);
+
+  }
+
+  @Benchmark
+  public int fullBorder() {
+    visited = 0;
+    BorderRing.diff(null, ring, this::visit);
+    return visited;
+  }
+
+  @Benchmark
+  public int movedBorder() {
+    visited = 0;
+    BorderRing.diff(ring, movedRing, this::visit);
+    return visited;
+  }
+
+  private void visit(int x, int y, int z, BorderRing.Role role) {
+    if (role != BorderRing.Role.NONE) visited++;
+  }
+
+}
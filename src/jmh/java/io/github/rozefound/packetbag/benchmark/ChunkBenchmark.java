@@ -0,0 +1,42 @@
+package io.github.rozefound.packetbag.benchmark;
+
+import io.github.rozefound.packetbag.utils.Chunk;
+import io.github.rozefound.packetbag.utils.Shape;
+import org.bukkit.Location;
+import org.joml.Vector2i;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+@State(Scope.Benchmark)
+public class ChunkBenchmark {
+
+  @Param({ "10", "30", "50" })
+  int radius;
+
+  private List<Location> locations;
+
+  @Setup
+  public void setup() {
+
+    var world = StandIns.world("world", -64, 320);
+    var sphere = Shape.drawSphere(new Location(world, 100, 64, -100), radius, StandIns.blockData("minecraft:stone"));
+
+    locations = new ArrayList<>(sphere.size());
+    sphere.forEach((x, y, z, blockData) -> locations.add(new Location(world, x, y, z)));
+
+  }
+
+  @Benchmark
+  public Map<Vector2i, Set<Integer>> chunkSectors() {
+    return Chunk.getChunkSectors(locations);
+  }
+
+}
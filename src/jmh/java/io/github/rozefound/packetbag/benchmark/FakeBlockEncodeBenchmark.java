@@ -0,0 +1,56 @@
+package io.github.rozefound.packetbag.benchmark;
+
+import io.github.rozefound.packetbag.utils.BlockMap;
+import io.github.rozefound.packetbag.utils.FakeBlock;
+import io.github.rozefound.packetbag.utils.Shape;
+import org.bukkit.Location;
+import org.bukkit.block.data.BlockData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The encoding half of {@link FakeBlock#sendFakeBlocks}: bucketing blocks by section into
+ * MultiBlockChange payloads, without the PacketEvents send.
+ */
+@State(Scope.Benchmark)
+public class FakeBlockEncodeBenchmark {
+
+  @Param({ "10", "30", "50" })
+  int radius;
+
+  @Param({ "1", "8" })
+  int paletteSize;
+
+  private BlockMap blocks;
+  private final Map<BlockData, Integer> globalIds = new IdentityHashMap<>();
+
+  @Setup
+  public void setup() {
+
+    var palette = new BlockData[paletteSize];
+
+    for (int i = 0; i < paletteSize; i++) {
+      palette[i] = StandIns.blockData("minecraft:stand_in_" + i);
+      globalIds.put(palette[i], i + 1);
+    }
+
+    var sphere = Shape.drawSphere(new Location(StandIns.world("world", -64, 320), 100, 64, -100), radius, palette[0]);
+
+    blocks = new BlockMap(sphere.size());
+    sphere.forEach((x, y, z, blockData) -> blocks.put(x, y, z, palette[Math.floorMod(x + y + z, paletteSize)]));
+
+  }
+
+  @Benchmark
+  public void encodeSections(Blackhole blackhole) {
+    FakeBlock.encodeSections(blocks, globalIds::get, (sectionKey, encoded) -> blackhole.consume(encoded));
+  }
+
+}
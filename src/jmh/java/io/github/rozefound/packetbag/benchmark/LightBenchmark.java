@@ -0,0 +1,66 @@
+package io.github.rozefound.packetbag.benchmark;
+
+import io.github.rozefound.packetbag.utils.Light;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Nibble access over a whole 16x16x16 light section.
+ */
+@State(Scope.Benchmark)
+public class LightBenchmark {
+
+  private final byte[] section = new byte[2048];
+  private final byte[] other = new byte[2048];
+
+  @Setup
+  public void setup() {
+    var random = new Random(42);
+    random.nextBytes(section);
+    random.nextBytes(other);
+  }
+
+  @Benchmark
+  public int getSection() {
+
+    int sum = 0;
+
+    for (int y = 0; y < 16; y++)
+      for (int z = 0; z < 16; z++)
+        for (int x = 0; x < 16; x++)
+          sum += Light.getLightValue(section, x, y, z);
+
+    return sum;
+
+  }
+
+  @Benchmark
+  public byte[] setSection() {
+
+    for (int y = 0; y < 16; y++)
+      for (int z = 0; z < 16; z++)
+        for (int x = 0; x < 16; x++)
+          Light.setLightValue(section, x, y, z, (x + y + z) & 15);
+
+    return section;
+
+  }
+
+  @Benchmark
+  public byte[] maxMerge() {
+    Light.max(section, other);
+    return section;
+  }
+
+  @Benchmark
+  public int forEachNonZero() {
+    int[] sum = { 0 };
+    Light.forEachNonZero(other, (x, y, z, level) -> sum[0] += level);
+    return sum[0];
+  }
+
+}
@@ -0,0 +1,48 @@
+package io.github.rozefound.packetbag.benchmark;
+
+import io.github.rozefound.packetbag.utils.BlockMap;
+import io.github.rozefound.packetbag.utils.Shape;
+import org.bukkit.Location;
+import org.bukkit.block.data.BlockData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Benchmark)
+public class ShapeBenchmark {
+
+  @Param({ "10", "20", "30", "40", "50" })
+  int radius;
+
+  private Location center;
+  private BlockData blockData;
+
+  @Setup
+  public void setup() {
+    center = new Location(StandIns.world("world", -64, 320), 100, 64, -100);
+    blockData = StandIns.blockData("minecraft:stone");
+  }
+
+  @Benchmark
+  public BlockMap sphere() {
+    return Shape.drawSphere(center, radius, blockData);
+  }
+
+  @Benchmark
+  public BlockMap dome() {
+    return Shape.drawDome(center, radius, blockData);
+  }
+
+  @Benchmark
+  public BlockMap cylinder() {
+    return Shape.drawCylinder(center, radius, radius, blockData);
+  }
+
+  @Benchmark
+  public BlockMap worldCylinder() {
+    return Shape.drawWorldCylinder(center, radius, blockData);
+  }
+
+}
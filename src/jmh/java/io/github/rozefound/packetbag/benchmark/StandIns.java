@@ -0,0 +1,45 @@
+package io.github.rozefound.packetbag.benchmark;
+
+import org.bukkit.World;
+import org.bukkit.block.data.BlockData;
+
+import java.lang.reflect.Proxy;
+
+/**
+ * Headless replacements for Bukkit objects that normally only exist on a running server.
+ * Only the handful of methods the benchmarked code calls are implemented.
+ */
+final class StandIns {
+
+  private StandIns() {}
+
+  /**
+   * A block state identified by name, compared by identity like the server's cached states.
+   */
+  static BlockData blockData(String name) {
+
+    return (BlockData) Proxy.newProxyInstance(StandIns.class.getClassLoader(), new Class<?>[] { BlockData.class }, (proxy, method, args) ->
+      switch (method.getName()) {
+        case "hashCode" -> System.identityHashCode(proxy);
+        case "equals" -> proxy == args[0];
+        case "toString", "getAsString" -> name;
+        default -> throw new UnsupportedOperationException(method.getName());
+      });
+
+  }
+
+  static World world(String name, int minHeight, int maxHeight) {
+
+    return (World) Proxy.newProxyInstance(StandIns.class.getClassLoader(), new Class<?>[] { World.class }, (proxy, method, args) ->
+      switch (method.getName()) {
+        case "hashCode" -> System.identityHashCode(proxy);
+        case "equals" -> proxy == args[0];
+        case "toString", "getName" -> name;
+        case "getMinHeight" -> minHeight;
+        case "getMaxHeight" -> maxHeight;
+        default -> throw new UnsupportedOperationException(method.getName());
+      });
+
+  }
+
+}
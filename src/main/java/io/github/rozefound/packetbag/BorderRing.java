@@ -0,0 +1,207 @@
+package io.github.rozefound.packetbag;
+
+import java.util.Arrays;
+
+/**
+ * Geometry of a player's border: a one block thick wall ring of the given radius around the
+ * centre column, running from just above {@code minY} up to a cap disc at {@code maxY}.
+ * <p>
+ * {@link #diff(BorderRing, BorderRing, BlockVisitor)} walks only the columns whose contents
+ * differ between two rings, so moving the centre by one chunk costs time proportional to
+ * the perimeter change instead of the whole cylinder.
+ */
+public record BorderRing(int centerX, int centerZ, int radius, int minY, int maxY) {
+
+  public enum Role {
+    /** The position is not part of the border. */
+    NONE,
+    /** The position belongs to the wall and should only be drawn where the world is see-through. */
+    WALL,
+    /** The position belongs to the top cap and is always drawn. */
+    CAP
+  }
+
+  @FunctionalInterface
+  public interface BlockVisitor {
+    void accept(int x, int y, int z, Role role);
+  }
+
+  @FunctionalInterface
+  public interface ColumnVisitor {
+    void accept(int x, int z);
+  }
+
+  public boolean isInDisc(int x, int z) {
+    int dx = x - centerX, dz = z - centerZ;
+    return dx * dx + dz * dz <= radius * radius;
+  }
+
+  public boolean isInWall(int x, int z) {
+    int dx = x - centerX, dz = z - centerZ;
+    int distanceSquared = dx * dx + dz * dz;
+    return distanceSquared > (radius - 1) * (radius - 1) && distanceSquared <= radius * radius;
+  }
+
+  public Role getRole(int x, int y, int z) {
+
+    if (y == maxY) return isInDisc(x, z) ? Role.CAP : Role.NONE;
+    if (y > minY && y < maxY && isInWall(x, z)) return Role.WALL;
+
+    return Role.NONE;
+
+  }
+
+  /**
+   * Visits every block position whose membership may differ between two rings, reporting the
+   * role the position has in {@code to}. Positions that only belonged to {@code from} are
+   * reported as {@link Role#NONE}.
+   * <p>
+   * Passing {@code null} as {@code from} enumerates the whole of {@code to}, passing
+   * {@code null} as {@code to} enumerates the whole of {@code from}.
+   */
+  public static void diff(BorderRing from, BorderRing to, BlockVisitor visitor) {
+    diffColumns(from, to, (x, z) -> diffColumn(from, to, x, z, visitor));
+  }
+
+  /**
+   * Visits every column whose contents may differ between two rings, with the same
+   * {@code null} conventions as {@link #diff(BorderRing, BorderRing, BlockVisitor)}.
+   */
+  public static void diffColumns(BorderRing from, BorderRing to, ColumnVisitor visitor) {
+
+    if (from == null && to == null) return;
+
+    if (from != null)
+      for (int z = from.centerZ - from.radius; z <= from.centerZ + from.radius; z++)
+        diffRow(from, to, z, visitor);
+
+    if (to != null)
+      for (int z = to.centerZ - to.radius; z <= to.centerZ + to.radius; z++)
+        if (from == null || z < from.centerZ - from.radius || z > from.centerZ + from.radius)
+          diffRow(from, to, z, visitor);
+
+  }
+
+  private static void diffRow(BorderRing from, BorderRing to, int z, ColumnVisitor visitor) {
+
+    // Column membership only changes at the edges of the discs, so split the row at every
+    // edge of both rings and test one column per segment.
+    int[] edges = new int[8];
+    int count = 0;
+
+    count = addRowEdges(from, z, edges, count);
+    count = addRowEdges(to, z, edges, count);
+
+    if (count == 0) return;
+
+    Arrays.sort(edges, 0, count);
+
+    boolean sameHeight = from != null && to != null && from.minY == to.minY && from.maxY == to.maxY;
+
+    for (int i = 0; i + 1 < count; i++) {
+
+      int start = edges[i];
+      int end = edges[i + 1];
+
+      if (start == end || !columnDiffers(from, to, start, z, sameHeight)) continue;
+
+      for (int x = start; x < end; x++)
+        visitor.accept(x, z);
+
+    }
+
+  }
+
+  private static int addRowEdges(BorderRing ring, int z, int[] edges, int count) {
+
+    if (ring == null) return count;
+
+    int dz = z - ring.centerZ;
+
+    int outer = halfWidth(ring.radius * ring.radius, dz);
+    if (outer < 0) return count;
+
+    edges[count++] = ring.centerX - outer;
+    edges[count++] = ring.centerX + outer + 1;
+
+    int inner = halfWidth((ring.radius - 1) * (ring.radius - 1), dz);
+    if (inner < 0) return count;
+
+    edges[count++] = ring.centerX - inner;
+    edges[count++] = ring.centerX + inner + 1;
+
+    return count;
+
+  }
+
+  /**
+   * @return The largest dx with {@code dx * dx + dz * dz <= limitSquared}, or -1 if there is none
+   */
+  private static int halfWidth(int limitSquared, int dz) {
+
+    int remaining = limitSquared - dz * dz;
+    if (remaining < 0) return -1;
+
+    int width = (int) Math.sqrt(remaining);
+
+    while (width * width > remaining) width--;
+    while ((width + 1) * (width + 1) <= remaining) width++;
+
+    return width;
+
+  }
+
+  private static boolean columnDiffers(BorderRing from, BorderRing to, int x, int z, boolean sameHeight) {
+
+    boolean fromDisc = from != null && from.isInDisc(x, z);
+    boolean toDisc = to != null && to.isInDisc(x, z);
+
+    if (!sameHeight) return fromDisc || toDisc;
+
+    return fromDisc != toDisc || from.isInWall(x, z) != to.isInWall(x, z);
+
+  }
+
+  private static void diffColumn(BorderRing from, BorderRing to, int x, int z, BlockVisitor visitor) {
+
+    boolean fromDisc = from != null && from.isInDisc(x, z);
+    boolean fromWall = from != null && from.isInWall(x, z);
+    boolean toDisc = to != null && to.isInDisc(x, z);
+    boolean toWall = to != null && to.isInWall(x, z);
+
+    int low = Integer.MAX_VALUE;
+    int high = Integer.MIN_VALUE;
+
+    if (fromWall) {
+      low = from.minY + 1;
+      high = from.maxY - 1;
+    }
+
+    if (toWall) {
+      low = Math.min(low, to.minY + 1);
+      high = Math.max(high, to.maxY - 1);
+    }
+
+    for (int y = low; y <= high; y++)
+      visitor.accept(x, y, z, roleInColumn(to, toDisc, toWall, y));
+
+    boolean fromCapVisited = fromDisc && (from.maxY < low || from.maxY > high);
+
+    if (fromCapVisited)
+      visitor.accept(x, from.maxY, z, roleInColumn(to, toDisc, toWall, from.maxY));
+
+    if (toDisc && (to.maxY < low || to.maxY > high) && !(fromCapVisited && from.maxY == to.maxY))
+      visitor.accept(x, to.maxY, z, Role.CAP);
+
+  }
+
+  private static Role roleInColumn(BorderRing ring, boolean inDisc, boolean inWall, int y) {
+
+    if (inDisc && y == ring.maxY) return Role.CAP;
+    if (inWall && y > ring.minY && y < ring.maxY) return Role.WALL;
+
+    return Role.NONE;
+
+  }
+
+}
@@ -0,0 +1,357 @@
+package io.github.rozefound.packetbag;
+
+import com.github.retrooper.packetevents.protocol.world.chunk.BaseChunk;
+import io.github.rozefound.packetbag.utils.BlockMap;
+import io.github.rozefound.packetbag.utils.BlockSet;
+import io.github.rozefound.packetbag.utils.FakeBlock;
+import io.github.rozefound.packetbag.utils.FakeBlockStore;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongConsumer;
+import java.util.logging.Logger;
+
+/**
+ * Remembers which fake blocks each player should currently see, as a {@link FakeBlockStore}
+ * of paletted sections, so they can be written straight into outgoing chunk packets instead
+ * of being re-sent afterwards.
+ * <p>
+ * Writes come from the main thread (or any other thread), reads come from Netty threads;
+ * each player's store is guarded by its own monitor. Large writes take it a batch at a time,
+ * so chunk rewrites never wait for a whole shape to be stored.
+ * <p>
+ * A player's store is capped at {@link #setMaxBytesPerPlayer(long) a byte budget}: once it is
+ * over, further writes are refused until blocks are removed again.
+ */
+public final class FakeBlockOverlay implements Listener {
+
+  // How many blocks are written per acquisition of a store's monitor
+  private static final int BATCH_SIZE = 4096;
+
+  // Past this many changed sections a store only remembers that everything changed
+  private static final int MAX_DIRTY_SECTIONS = 1024;
+
+  private final PlayerFeatures playerFeatures;
+  private final Logger logger;
+
+  private final Map<UUID, FakeBlockStore> stores = new ConcurrentHashMap<>();
+  private final Set<UUID> overBudget = ConcurrentHashMap.newKeySet();
+
+  private volatile long maxBytesPerPlayer = 64L << 20;
+
+  public FakeBlockOverlay(PlayerFeatures playerFeatures, Logger logger) {
+    this.playerFeatures = playerFeatures;
+    this.logger = logger;
+  }
+
+  /**
+   * @param maxBytesPerPlayer The rough heap footprint past which a player's store refuses new blocks
+   */
+  public void setMaxBytesPerPlayer(long maxBytesPerPlayer) {
+    this.maxBytesPerPlayer = maxBytesPerPlayer;
+  }
+
+  public long getMaxBytesPerPlayer() {
+    return maxBytesPerPlayer;
+  }
+
+  /**
+   * @return Whether the block was stored, {@code false} if the player's store is over budget
+   */
+  public boolean put(Player player, int x, int y, int z, BlockData blockData) {
+
+    var store = storeOf(player);
+    if (!hasRoom(player, store)) return false;
+
+    synchronized (store) {
+      store.put(x, y, z, blockData);
+    }
+
+    return true;
+
+  }
+
+  /**
+   * Stores the blocks a batch at a time. The budget is checked once, up front, so a single
+   * call may take the store past it.
+   * @return Whether the blocks were stored, {@code false} if the player's store is over budget
+   */
+  public boolean put(Player player, BlockMap blocks) {
+
+    if (blocks.isEmpty()) return true;
+
+    var store = storeOf(player);
+    if (!hasRoom(player, store)) return false;
+
+    long[] keys = new long[blocks.size()];
+    BlockData[] values = new BlockData[keys.length];
+    toArrays(blocks, keys, values);
+
+    for (int start = 0; start < keys.length; start += BATCH_SIZE) {
+      int end = Math.min(start + BATCH_SIZE, keys.length);
+      synchronized (store) {
+        for (int i = start; i < end; i++) store.put(keys[i], values[i]);
+      }
+    }
+
+    return true;
+
+  }
+
+  /**
+   * Forgets the fake blocks at the given positions, so the real world shows through again on the next chunk send.
+   */
+  public void remove(Player player, BlockMap blocks) {
+
+    var store = stores.get(player.getUniqueId());
+    if (store == null || blocks.isEmpty()) return;
+
+    long[] keys = new long[blocks.size()];
+
+    int[] count = { 0 };
+    blocks.forEachKey(key -> keys[count[0]++] = key);
+
+    remove(store, keys);
+
+  }
+
+  public void remove(Player player, BlockSet positions) {
+
+    var store = stores.get(player.getUniqueId());
+    if (store == null || positions.isEmpty()) return;
+
+    remove(store, toArray(positions));
+
+  }
+
+  /**
+   * Forgets the fake blocks at the given positions that are still the ones in {@code expected},
+   * leaving positions something else has drawn over since alone.
+   * @return The positions that were forgotten
+   */
+  public BlockSet removeIfUnchanged(Player player, BlockMap expected) {
+
+    var removed = new BlockSet();
+
+    var store = stores.get(player.getUniqueId());
+    if (store == null || expected.isEmpty()) return removed;
+
+    long[] keys = new long[expected.size()];
+    BlockData[] values = new BlockData[keys.length];
+    toArrays(expected, keys, values);
+
+    for (int start = 0; start < keys.length; start += BATCH_SIZE) {
+      int end = Math.min(start + BATCH_SIZE, keys.length);
+      synchronized (store) {
+        for (int i = start; i < end; i++) {
+          var current = store.get(keys[i]);
+          if (current == null || !current.equals(values[i])) continue;
+          store.remove(keys[i]);
+          removed.add(keys[i]);
+        }
+      }
+    }
+
+    return removed;
+
+  }
+
+  public void clear(Player player) {
+    stores.remove(player.getUniqueId());
+    overBudget.remove(player.getUniqueId());
+    playerFeatures.disable(player.getUniqueId(), PlayerFeatures.Feature.FAKE_BLOCKS);
+  }
+
+  public BlockData get(UUID uuid, int x, int y, int z) {
+
+    var store = stores.get(uuid);
+    if (store == null) return null;
+
+    synchronized (store) {
+      return store.get(x, y, z);
+    }
+
+  }
+
+  public boolean hasChunk(UUID uuid, int chunkX, int chunkZ) {
+
+    var store = stores.get(uuid);
+    if (store == null) return false;
+
+    synchronized (store) {
+      return store.hasChunk(chunkX, chunkZ);
+    }
+
+  }
+
+  /**
+   * Hands out the keys of the player's sections changed since the last call.
+   * @return Whether the keys are complete, see {@link FakeBlockStore#drainDirtySections(LongConsumer)}
+   */
+  public boolean drainDirtySections(UUID uuid, LongConsumer consumer) {
+
+    var store = stores.get(uuid);
+    if (store == null) return true;
+
+    synchronized (store) {
+      return store.drainDirtySections(consumer);
+    }
+
+  }
+
+  /**
+   * Writes the player's fake blocks for a chunk into decoded chunk sections.
+   * @param sections The column's sections, starting at the world's lowest section
+   * @param minSection The section Y of {@code sections[0]}
+   * @return Whether any section was modified
+   */
+  public boolean applyToColumn(UUID uuid, int chunkX, int chunkZ, BaseChunk[] sections, int minSection) {
+
+    var store = stores.get(uuid);
+    if (store == null) return false;
+
+    boolean[] modified = { false };
+
+    synchronized (store) {
+
+      store.forEachSection(chunkX, chunkZ, (sectionY, fakeSection) -> {
+
+        int index = sectionY - minSection;
+        if (index < 0 || index >= sections.length || sections[index] == null) return;
+
+        var section = sections[index];
+
+        // Palette entry 0 is "no block" and freed entries are null, both stay -1
+        int[] globalIds = new int[fakeSection.getPaletteSize()];
+        for (int i = 0; i < globalIds.length; i++) {
+          var entry = fakeSection.getPaletteEntry(i);
+          globalIds[i] = entry == null ? -1 : FakeBlock.getGlobalId(entry);
+        }
+
+        fakeSection.forEach((block, state) -> section.set(block & 15, block >> 8, block >> 4 & 15, globalIds[state]));
+        modified[0] = true;
+
+      });
+
+    }
+
+    return modified[0];
+
+  }
+
+  /**
+   * @return How many fake blocks each player holds, keyed by player UUID
+   */
+  public Map<String, Integer> getBlocksByPlayer() {
+
+    var result = new HashMap<String, Integer>();
+
+    for (var entry : stores.entrySet()) {
+      var store = entry.getValue();
+      synchronized (store) {
+        if (!store.isEmpty()) result.put(entry.getKey().toString(), store.size());
+      }
+    }
+
+    return result;
+
+  }
+
+  /**
+   * @return A rough heap footprint of every player's store together, in bytes
+   */
+  public long getEstimatedBytes() {
+
+    long bytes = 0;
+
+    for (var store : stores.values()) {
+      synchronized (store) {
+        bytes += store.estimatedBytes();
+      }
+    }
+
+    return bytes;
+
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onPlayerQuit(PlayerQuitEvent event) {
+    clear(event.getPlayer());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+    clear(event.getPlayer());
+  }
+
+  private FakeBlockStore storeOf(Player player) {
+    playerFeatures.enable(player.getUniqueId(), PlayerFeatures.Feature.FAKE_BLOCKS);
+    return stores.computeIfAbsent(player.getUniqueId(), uuid -> new FakeBlockStore(MAX_DIRTY_SECTIONS));
+  }
+
+  private boolean hasRoom(Player player, FakeBlockStore store) {
+
+    long bytes;
+    synchronized (store) {
+      bytes = store.estimatedBytes();
+    }
+
+    var uuid = player.getUniqueId();
+
+    if (bytes <= maxBytesPerPlayer) {
+      overBudget.remove(uuid);
+      return true;
+    }
+
+    // Warned once per overrun, not once per refused write
+    if (overBudget.add(uuid))
+      logger.warning("Fake blocks for %s are over budget (%d of %d bytes), refusing new ones".formatted(player.getName(), bytes, maxBytesPerPlayer));
+
+    return false;
+
+  }
+
+  private static void remove(FakeBlockStore store, long[] keys) {
+
+    for (int start = 0; start < keys.length; start += BATCH_SIZE) {
+      int end = Math.min(start + BATCH_SIZE, keys.length);
+      synchronized (store) {
+        for (int i = start; i < end; i++) store.remove(keys[i]);
+      }
+    }
+
+  }
+
+  private static void toArrays(BlockMap blocks, long[] keys, BlockData[] values) {
+
+    int[] count = { 0 };
+
+    blocks.forEachState((key, state) -> {
+      keys[count[0]] = key;
+      values[count[0]++] = blocks.getPaletteEntry(state);
+    });
+
+  }
+
+  private static long[] toArray(BlockSet positions) {
+
+    long[] keys = new long[positions.size()];
+
+    int[] count = { 0 };
+    positions.forEach(key -> keys[count[0]++] = key);
+
+    return keys;
+
+  }
+
+}
@@ -0,0 +1,447 @@
+package io.github.rozefound.packetbag;
+
+import com.destroystokyo.paper.event.server.ServerTickEndEvent;
+import io.github.rozefound.packetbag.utils.BlockKey;
+import io.github.rozefound.packetbag.utils.BlockMap;
+import io.github.rozefound.packetbag.utils.Chunk;
+import io.github.rozefound.packetbag.utils.FakeBlock;
+import io.github.rozefound.packetbag.utils.Metrics;
+import io.papermc.paper.event.packet.PlayerChunkLoadEvent;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongConsumer;
+
+/**
+ * Spreads large fake block sends over several ticks, so a big shape or border does not flood
+ * a player's connection with hundreds of MultiBlockChange packets at once.
+ * <p>
+ * Blocks are queued per section; a later write to a position replaces whatever was still
+ * queued for it. Chunks whose queued changes would cost more than the chunk itself are resent
+ * whole instead, which relies on every queued block also being recorded in the
+ * {@link FakeBlockOverlay}.
+ * <p>
+ * At the end of every tick each player is sent the sections closest to them, up to a packet
+ * and an estimated byte budget. At least one section goes out per tick, so
+ * a budget smaller than a single section cannot stall the queue.
+ * <p>
+ * Sections the client cannot receive, because it has not loaded their chunk or the chunk is
+ * beyond the player's view distance, are parked by chunk and left out of the drain entirely.
+ * Once the client loads the chunk they are dropped, as its chunk packet is built after they
+ * were parked and already shows the same blocks. When the view distance changes, those of
+ * chunks the client has are read again from the overlay and the world and queued.
+ * <p>
+ * Blocks can be queued from any thread, draining happens on the main thread.
+ */
+public final class FakeBlockSendQueue implements Listener {
+
+  private static final Metrics.Histogram DRAIN_TIME = Metrics.timer("sendQueue.drain");
+
+  private final Main plugin;
+
+  private final Map<UUID, Map<Long, BlockMap>> pendingSections = new ConcurrentHashMap<>();
+
+  /** Parked sections by chunk key, then section key. Guarded by the player's pending sections. */
+  private final Map<UUID, Map<Long, Map<Long, BlockMap>>> parkedSections = new ConcurrentHashMap<>();
+
+  private volatile int maxPacketsPerTick = 64;
+  private volatile int maxBytesPerTick = 64 * 1024;
+
+  public FakeBlockSendQueue(Main plugin) {
+    this.plugin = plugin;
+  }
+
+  public int getMaxPacketsPerTick() {
+    return maxPacketsPerTick;
+  }
+
+  public int getMaxBytesPerTick() {
+    return maxBytesPerTick;
+  }
+
+  public void setBudget(int maxPacketsPerTick, int maxBytesPerTick) {
+    this.maxPacketsPerTick = Math.max(1, maxPacketsPerTick);
+    this.maxBytesPerTick = Math.max(1, maxBytesPerTick);
+  }
+
+  public void enqueue(Player player, BlockMap blocks) {
+
+    if (blocks.isEmpty()) return;
+
+    var sections = pendingSections.computeIfAbsent(player.getUniqueId(), uuid -> new HashMap<>());
+
+    synchronized (sections) {
+      blocks.forEachState((key, state) -> {
+        int x = BlockKey.getX(key), y = BlockKey.getY(key), z = BlockKey.getZ(key);
+        sections.computeIfAbsent(Chunk.getSectionKey(x >> 4, y >> 4, z >> 4), sectionKey -> new BlockMap())
+          .put(key, blocks.getPaletteEntry(state));
+      });
+    }
+
+  }
+
+  public int getPendingSections(Player player) {
+
+    var sections = pendingSections.get(player.getUniqueId());
+    if (sections == null) return 0;
+
+    synchronized (sections) {
+      return sections.size();
+    }
+
+  }
+
+  /**
+   * Queued section counts of every player with something queued, keyed by player UUID.
+   */
+  public Map<String, Integer> getPendingSectionsByPlayer() {
+
+    var result = new HashMap<String, Integer>();
+
+    for (var entry : pendingSections.entrySet()) {
+      var sections = entry.getValue();
+      synchronized (sections) {
+        if (!sections.isEmpty()) result.put(entry.getKey().toString(), sections.size());
+      }
+    }
+
+    return result;
+
+  }
+
+  /**
+   * Parked section counts of every player with something parked, keyed by player UUID.
+   */
+  public Map<String, Integer> getParkedSectionsByPlayer() {
+
+    var result = new HashMap<String, Integer>();
+
+    for (var entry : pendingSections.entrySet()) {
+
+      var parked = parkedSections.get(entry.getKey());
+      if (parked == null) continue;
+
+      synchronized (entry.getValue()) {
+        int count = parked.values().stream().mapToInt(Map::size).sum();
+        if (count > 0) result.put(entry.getKey().toString(), count);
+      }
+
+    }
+
+    return result;
+
+  }
+
+  public void clear(Player player) {
+    pendingSections.remove(player.getUniqueId());
+    parkedSections.remove(player.getUniqueId());
+  }
+
+  /**
+   * Drops a chunk's parked sections once the client has received the chunk. Sections are only
+   * parked by the drain, on the main thread, before the chunk was sent, so the chunk packet
+   * already carries their fake blocks from the overlay and their real blocks from the world.
+   */
+  public void unpark(Player player, long chunkKey) {
+
+    var sections = pendingSections.get(player.getUniqueId());
+    var parked = parkedSections.get(player.getUniqueId());
+
+    if (sections == null || parked == null) return;
+
+    synchronized (sections) {
+      parked.remove(chunkKey);
+    }
+
+  }
+
+  /**
+   * Queues the parked sections of every chunk the client has again, for when the view distance
+   * grows. Their blocks are read anew, from the overlay where a fake block is still recorded and
+   * from the world elsewhere, since what was parked may have been replaced since. Sections still
+   * out of reach are parked again by the next drain. Must be called on the main thread.
+   */
+  public void unparkAll(Player player) {
+
+    var uuid = player.getUniqueId();
+    var sections = pendingSections.get(uuid);
+    var parked = parkedSections.get(uuid);
+
+    if (sections == null || parked == null) return;
+
+    var loadedChunks = plugin.getPlayerChunkLoadListener();
+    var reachable = new ArrayList<BlockMap>();
+
+    synchronized (sections) {
+      parked.entrySet().removeIf(entry -> {
+        if (!loadedChunks.isChunkLoaded(uuid, entry.getKey())) return false;
+        reachable.addAll(entry.getValue().values());
+        return true;
+      });
+    }
+
+    if (reachable.isEmpty()) return;
+
+    var overlay = plugin.getFakeBlockOverlay();
+    var world = player.getWorld();
+    var current = new BlockMap();
+
+    for (var blocks : reachable)
+      blocks.forEachKey(key -> {
+        int x = BlockKey.getX(key), y = BlockKey.getY(key), z = BlockKey.getZ(key);
+        var fake = overlay.get(uuid, x, y, z);
+        if (fake != null) current.put(key, fake);
+        else if (world.isChunkLoaded(x >> 4, z >> 4)) current.put(key, world.getBlockData(x, y, z));
+      });
+
+    // Read just now, so it may replace whatever was queued for these positions in the meantime
+    enqueue(player, current);
+
+  }
+
+  /**
+   * Sends every player their nearest queued sections, within the per-tick budget.
+   */
+  public void drain() {
+
+    long start = System.nanoTime();
+
+    for (var entry : pendingSections.entrySet()) {
+
+      var player = plugin.getServer().getPlayer(entry.getKey());
+
+      if (player == null) {
+        pendingSections.remove(entry.getKey(), entry.getValue());
+        parkedSections.remove(entry.getKey());
+        continue;
+      }
+
+      // Sent silently, so the sections are darkened here rather than by the packet listener
+      var coalescer = plugin.getLightUpdateCoalescer();
+      LongConsumer sentSection = plugin.getPlayerFeatures().has(player, PlayerFeatures.Feature.DARKNESS)
+        ? sectionKey -> coalescer.markSection(player, sectionKey)
+        : sectionKey -> {};
+
+      for (var send : takeNearest(player, entry.getValue())) {
+
+        int chunkX = Chunk.getChunkKeyX(send.chunkKey());
+        int chunkZ = Chunk.getChunkKeyZ(send.chunkKey());
+
+        if (send.blocks() != null) FakeBlock.sendFakeBlocks(player, send.blocks(), sentSection);
+        else if (FakeBlock.resendChunk(player, chunkX, chunkZ))
+          plugin.getLightUpdateCoalescer().markChunk(player, chunkX, chunkZ);
+
+      }
+
+    }
+
+    DRAIN_TIME.recordSince(start);
+
+  }
+
+  /**
+   * A single queued send: either the changes of one section, or a whole chunk resend when
+   * {@code blocks} is {@code null}.
+   */
+  private record Send(long chunkKey, BlockMap blocks) {}
+
+  private List<Send> takeNearest(Player player, Map<Long, BlockMap> sections) {
+
+    var location = player.getLocation();
+    var world = player.getWorld();
+
+    int sectionX = location.getBlockX() >> 4;
+    int sectionY = location.getBlockY() >> 4;
+    int sectionZ = location.getBlockZ() >> 4;
+
+    int minSection = world.getMinHeight() >> 4;
+    int sectionCount = (world.getMaxHeight() - world.getMinHeight()) >> 4;
+    var loadedChunks = plugin.getPlayerChunkLoadListener();
+
+    var taken = new ArrayList<Send>();
+
+    synchronized (sections) {
+
+      if (sections.isEmpty()) return taken;
+
+      park(player, sections);
+      if (sections.isEmpty()) return taken;
+
+      // Distance in the high half, position in the low half: sorting the packed values orders by distance
+      long[] keys = new long[sections.size()];
+      int[] sizes = new int[keys.length];
+      long[] order = new long[keys.length];
+
+      var chunkBytes = new HashMap<Long, Long>();
+      var changedSections = new HashMap<Long, BitSet>();
+      var resendBytes = new HashMap<Long, Long>();
+
+      int index = 0;
+
+      for (var entry : sections.entrySet()) {
+
+        long sectionKey = entry.getKey();
+
+        long dx = Chunk.getSectionKeyX(sectionKey) - sectionX;
+        long dy = Chunk.getSectionKeyY(sectionKey) - sectionY;
+        long dz = Chunk.getSectionKeyZ(sectionKey) - sectionZ;
+
+        long distance = Math.min(dx * dx + dy * dy + dz * dz, Integer.MAX_VALUE);
+
+        keys[index] = sectionKey;
+        sizes[index] = FakeBlock.estimateMultiBlockChangeBytes(entry.getValue());
+        order[index] = distance << 32 | index;
+
+        chunkBytes.merge(chunkKeyOf(sectionKey), (long) sizes[index], Long::sum);
+        int sectionIndex = Chunk.getSectionKeyY(sectionKey) - minSection;
+        var changed = changedSections.computeIfAbsent(chunkKeyOf(sectionKey), key -> new BitSet());
+        if (sectionIndex >= 0 && sectionIndex < sectionCount) changed.set(sectionIndex);
+
+        index++;
+
+      }
+
+      Arrays.sort(order);
+
+      int packets = 0;
+      long bytes = 0;
+
+      for (long packed : order) {
+
+        int position = (int) packed;
+        long sectionKey = keys[position];
+        long chunkKey = chunkKeyOf(sectionKey);
+
+        // Already covered by a chunk resend earlier in this drain
+        if (!sections.containsKey(sectionKey)) continue;
+
+        long changeBytes = chunkBytes.get(chunkKey);
+
+        // Dense chunks the client has loaded are resent whole, taking every queued section of the chunk with them.
+        // Changes too small to outweigh even an empty chunk never need its sections looked at.
+        boolean resend = false;
+        long chunkResendBytes = 0;
+
+        if (FakeBlock.isCheaperToResend(changeBytes, FakeBlock.estimateResendBytes(0, sectionCount)) && loadedChunks.isChunkLoaded(player.getUniqueId(), chunkKey)) {
+          chunkResendBytes = resendBytes.computeIfAbsent(chunkKey, key -> estimateResendBytes(world, key, changedSections.get(key), sectionCount));
+          resend = FakeBlock.isCheaperToResend(changeBytes, chunkResendBytes);
+        }
+
+        int size = resend ? (int) Math.min(chunkResendBytes, Integer.MAX_VALUE) : sizes[position];
+
+        if (packets > 0 && (packets >= maxPacketsPerTick || bytes + size > maxBytesPerTick)) break;
+
+        if (resend) {
+          sections.keySet().removeIf(key -> chunkKeyOf(key) == chunkKey);
+          taken.add(new Send(chunkKey, null));
+        }
+        else taken.add(new Send(chunkKey, sections.remove(sectionKey)));
+
+        packets++;
+        bytes += size;
+
+      }
+
+    }
+
+    return taken;
+
+  }
+
+  /**
+   * Whether the client can receive changes to a chunk right now: it has loaded the chunk, and the
+   * chunk is within the player's view distance. Must be called on the main thread.
+   */
+  public boolean canReceive(Player player, long chunkKey) {
+    var location = player.getLocation();
+    return canReceive(player.getUniqueId(), chunkKey, location.getBlockX() >> 4, location.getBlockZ() >> 4, plugin.getPlayerViewDistance(player));
+  }
+
+  private boolean canReceive(UUID uuid, long chunkKey, int chunkX, int chunkZ, int viewDistance) {
+    int distance = Math.max(Math.abs(Chunk.getChunkKeyX(chunkKey) - chunkX), Math.abs(Chunk.getChunkKeyZ(chunkKey) - chunkZ));
+    return distance <= viewDistance && plugin.getPlayerChunkLoadListener().isChunkLoaded(uuid, chunkKey);
+  }
+
+  /**
+   * Moves the sections the client cannot receive right now out of the queue, merging them into
+   * what is already parked for their chunk. Expects the player's sections to be locked.
+   */
+  private void park(Player player, Map<Long, BlockMap> sections) {
+
+    var uuid = player.getUniqueId();
+
+    var location = player.getLocation();
+    int chunkX = location.getBlockX() >> 4;
+    int chunkZ = location.getBlockZ() >> 4;
+    int viewDistance = plugin.getPlayerViewDistance(player);
+
+    sections.entrySet().removeIf(entry -> {
+
+      long chunkKey = chunkKeyOf(entry.getKey());
+      if (canReceive(uuid, chunkKey, chunkX, chunkZ, viewDistance)) return false;
+
+      parkedSections.computeIfAbsent(uuid, key -> new HashMap<>())
+        .computeIfAbsent(chunkKey, key -> new HashMap<>())
+        .merge(entry.getKey(), entry.getValue(), (parked, queued) -> {
+          parked.putAll(queued);
+          return parked;
+        });
+
+      return true;
+
+    });
+
+  }
+
+  /**
+   * @param changedSections The chunk's sections with queued changes, which the resend fills in
+   * @return The chunk packet's estimate, or {@link Long#MAX_VALUE} when the chunk is not loaded and cannot be resent
+   */
+  private static long estimateResendBytes(World world, long chunkKey, BitSet changedSections, int sectionCount) {
+
+    var filled = (BitSet) changedSections.clone();
+    if (!FakeBlock.markFilledSections(world, Chunk.getChunkKeyX(chunkKey), Chunk.getChunkKeyZ(chunkKey), filled)) return Long.MAX_VALUE;
+
+    return FakeBlock.estimateResendBytes(filled.cardinality(), sectionCount);
+
+  }
+
+  private static long chunkKeyOf(long sectionKey) {
+    return Chunk.getChunkKey(Chunk.getSectionKeyX(sectionKey), Chunk.getSectionKeyZ(sectionKey));
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onPlayerChunkLoad(PlayerChunkLoadEvent event) {
+    var chunk = event.getChunk();
+    unpark(event.getPlayer(), Chunk.getChunkKey(chunk.getX(), chunk.getZ()));
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onTickEnd(ServerTickEndEvent event) {
+    drain();
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onPlayerQuit(PlayerQuitEvent event) {
+    clear(event.getPlayer());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+    clear(event.getPlayer());
+  }
+
+}
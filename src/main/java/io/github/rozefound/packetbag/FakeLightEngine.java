@@ -0,0 +1,711 @@
+package io.github.rozefound.packetbag;
+
+import com.github.retrooper.packetevents.protocol.world.chunk.LightData;
+import io.github.rozefound.packetbag.utils.BlockKey;
+import io.github.rozefound.packetbag.utils.BlockMap;
+import io.github.rozefound.packetbag.utils.Chunk;
+import io.github.rozefound.packetbag.utils.ChunkKeySet;
+import io.github.rozefound.packetbag.utils.Light;
+import io.github.rozefound.packetbag.utils.LightPacket;
+import io.github.rozefound.packetbag.utils.LightSectionPool;
+import io.github.rozefound.packetbag.utils.Metrics;
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.level.LightLayer;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.World;
+import org.bukkit.craftbukkit.CraftWorld;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+/**
+ * Propagates block light from fake light sources, such as fake glowstone, for the player who
+ * sees them.
+ * <p>
+ * Propagation is a breadth-first flood over nibble sections, run on a dedicated thread against
+ * chunk snapshots taken on the main thread, with fake blocks from the {@link FakeBlockOverlay}
+ * taking precedence over real ones. Occluding blocks stop light, everything else lowers it by
+ * one per block. Adding or removing an emitter, or changing a block's opacity, only re-floods
+ * the area that emitter can reach.
+ * <p>
+ * The finished fake light is published per section as immutable copies and sent back on the
+ * main thread as UPDATE_LIGHT packets for the changed sections only, merged with the real
+ * block light by taking the brighter value. The same merge is applied to light the server
+ * sends later, so real updates do not wipe fake light out.
+ */
+public final class FakeLightEngine implements Listener {
+
+  private static final int[][] NEIGHBOURS = { { -1, 0, 0 }, { 1, 0, 0 }, { 0, -1, 0 }, { 0, 1, 0 }, { 0, 0, -1 }, { 0, 0, 1 } };
+
+  private static final Metrics.Histogram PROPAGATION_TIME = Metrics.timer("light.propagate");
+
+  private final Main plugin;
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(task -> {
+    var thread = new Thread(task, "packet-bag-fake-light");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final Map<UUID, PlayerLight> players = new ConcurrentHashMap<>();
+
+  /**
+   * Fake light state of a single player.
+   */
+  private static final class PlayerLight {
+
+    private final World world;
+
+    /** Emitter levels as requested on the main thread, used to work out what changed. */
+    private final Map<Long, Integer> requestedEmitters = new HashMap<>();
+    /** Chunks that have held a requested emitter, main thread only; fake light never gets past their neighbours. */
+    private final ChunkKeySet emitterChunks = new ChunkKeySet();
+
+    /** Emitter levels as the engine thread has applied them. */
+    private final Map<Long, Integer> emitters = new HashMap<>();
+    /** Fake light per section key, only touched by the engine thread. */
+    private final Map<Long, byte[]> sections = new HashMap<>();
+
+    /** Published copies by chunk key and section Y, never modified once published. */
+    private final Map<Long, Map<Integer, byte[]>> published = new ConcurrentHashMap<>();
+
+    private PlayerLight(World world) {
+      this.world = world;
+    }
+
+  }
+
+  /**
+   * A batch of block changes for the engine thread.
+   * @param emitterKeys Positions whose emitted level changed, with the old and new level
+   */
+  private record LightJob(long[] emitterKeys, int[] oldLevels, int[] newLevels, long[] blockKeys, Map<Long, ChunkSnapshot> snapshots) {}
+
+  public FakeLightEngine(Main plugin) {
+    this.plugin = plugin;
+  }
+
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Tells the engine about fake blocks shown to a player. Blocks that emit light become
+   * emitters, everything else may change opacity. Must be called on the main thread, after
+   * the blocks were recorded in the overlay.
+   */
+  public void update(Player player, BlockMap blocks) {
+
+    if (blocks.isEmpty()) return;
+
+    var world = player.getWorld();
+    var light = players.compute(player.getUniqueId(), (uuid, current) -> current == null || current.world != world ? new PlayerLight(world) : current);
+
+    int[] emissions = new int[blocks.getPaletteSize()];
+    boolean anyEmitter = false;
+
+    for (int i = 0; i < emissions.length; i++) {
+      emissions[i] = blocks.getPaletteEntry(i).getLightEmission();
+      anyEmitter |= emissions[i] > 0;
+    }
+
+    // Nothing to light and nothing lit: opacity changes cannot matter
+    if (!anyEmitter && light.requestedEmitters.isEmpty()) return;
+
+    var emitterKeys = LongStream.builder();
+    var oldLevels = IntStream.builder();
+    var newLevels = IntStream.builder();
+
+    long[] blockKeys = new long[blocks.size()];
+    int[] count = { 0 };
+
+    blocks.forEachState((key, state) -> {
+
+      blockKeys[count[0]++] = key;
+
+      int oldLevel = light.requestedEmitters.getOrDefault(key, 0);
+      int newLevel = emissions[state];
+      if (oldLevel == newLevel) return;
+
+      if (newLevel > 0) {
+        light.requestedEmitters.put(key, newLevel);
+        light.emitterChunks.add(chunkKeyOf(key));
+      }
+      else light.requestedEmitters.remove(key);
+
+      emitterKeys.add(key);
+      oldLevels.add(oldLevel);
+      newLevels.add(newLevel);
+
+    });
+
+    long[] changedEmitters = emitterKeys.build().toArray();
+
+    var job = new LightJob(
+      changedEmitters,
+      oldLevels.build().toArray(),
+      newLevels.build().toArray(),
+      blockKeys,
+      captureSnapshots(world, light, changedEmitters, blockKeys));
+
+    var uuid = player.getUniqueId();
+
+    if (anyEmitter) plugin.getPlayerFeatures().enable(uuid, PlayerFeatures.Feature.FAKE_LIGHT);
+
+    executor.execute(() -> {
+
+      try {
+
+        long start = System.nanoTime();
+        var changed = propagate(uuid, light, job);
+        PROPAGATION_TIME.recordSince(start);
+
+        if (changed.isEmpty()) return;
+
+        plugin.getServer().getScheduler().runTask(plugin, () -> sendChanges(uuid, light, changed));
+
+      }
+      catch (Exception exception) {
+        plugin.getLogger().severe("Failed to propagate fake light for %s: %s".formatted(uuid, exception));
+      }
+
+    });
+
+  }
+
+  public boolean hasChunk(UUID uuid, int chunkX, int chunkZ) {
+    var light = players.get(uuid);
+    return light != null && light.published.containsKey(Chunk.getChunkKey(chunkX, chunkZ));
+  }
+
+  /**
+   * Merges the player's fake light into decoded block light, keeping the brighter value.
+   * @param includeMissing Whether sections the packet carries no block light for count as dark;
+   *                       true for full chunk packets, false for incremental light updates
+   * @return Whether the light data was modified
+   */
+  public boolean applyToLightData(UUID uuid, int chunkX, int chunkZ, LightData lightData, int minSection, boolean includeMissing) {
+
+    var light = players.get(uuid);
+    if (light == null) return false;
+
+    var fakeSections = light.published.get(Chunk.getChunkKey(chunkX, chunkZ));
+    if (fakeSections == null || fakeSections.isEmpty()) return false;
+
+    var mask = lightData.getBlockLightMask();
+    var emptyMask = lightData.getEmptyBlockLightMask();
+    var arrays = lightData.getBlockLightArray();
+
+    Map<Integer, byte[]> byIndex = new HashMap<>();
+
+    int arrayIndex = 0;
+    for (int index = mask.nextSetBit(0); index >= 0 && arrayIndex < arrays.length; index = mask.nextSetBit(index + 1))
+      byIndex.put(index, arrays[arrayIndex++]);
+
+    boolean modified = false;
+
+    for (var entry : fakeSections.entrySet()) {
+
+      int index = entry.getKey() - minSection + 1;
+      var array = byIndex.get(index);
+
+      if (array != null) Light.max(array, entry.getValue());
+      else if (includeMissing || emptyMask.get(index)) {
+        // Published sections are never modified, so the packet can share them
+        byIndex.put(index, entry.getValue());
+        mask.set(index);
+        emptyMask.clear(index);
+      }
+      else continue;
+
+      modified = true;
+
+    }
+
+    if (!modified) return false;
+
+    var merged = new byte[mask.cardinality()][];
+
+    arrayIndex = 0;
+    for (int index = mask.nextSetBit(0); index >= 0; index = mask.nextSetBit(index + 1))
+      merged[arrayIndex++] = byIndex.get(index);
+
+    lightData.setBlockLightArray(merged);
+    lightData.setBlockLightCount(merged.length);
+
+    return true;
+
+  }
+
+  public void clear(Player player) {
+    players.remove(player.getUniqueId());
+    plugin.getPlayerFeatures().disable(player.getUniqueId(), PlayerFeatures.Feature.FAKE_LIGHT);
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onPlayerQuit(PlayerQuitEvent event) {
+    clear(event.getPlayer());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+    clear(event.getPlayer());
+  }
+
+  /**
+   * Snapshots the loaded chunks around every changed emitter, and around changed blocks that
+   * fake light may reach, which is near a chunk that has held an emitter. Light from an emitter
+   * never travels further than the neighbouring chunks; other changes elsewhere cannot matter.
+   */
+  private Map<Long, ChunkSnapshot> captureSnapshots(World world, PlayerLight light, long[] emitterKeys, long[] blockKeys) {
+
+    var chunkKeys = new ChunkKeySet();
+    var visited = new ChunkKeySet();
+
+    for (long key : emitterKeys) {
+      long chunkKey = chunkKeyOf(key);
+      if (visited.add(chunkKey)) addNeighbourhood(chunkKeys, chunkKey);
+    }
+
+    for (long key : blockKeys) {
+      long chunkKey = chunkKeyOf(key);
+      if (visited.add(chunkKey) && isNearEmitter(light, chunkKey)) addNeighbourhood(chunkKeys, chunkKey);
+    }
+
+    Map<Long, ChunkSnapshot> snapshots = new HashMap<>();
+
+    chunkKeys.forEach(chunkKey -> {
+
+      int chunkX = Chunk.getChunkKeyX(chunkKey);
+      int chunkZ = Chunk.getChunkKeyZ(chunkKey);
+
+      if (world.isChunkLoaded(chunkX, chunkZ))
+        snapshots.put(chunkKey, world.getChunkAt(chunkX, chunkZ).getChunkSnapshot(false, false, false));
+
+    });
+
+    return snapshots;
+
+  }
+
+  private static void addNeighbourhood(ChunkKeySet chunkKeys, long chunkKey) {
+
+    int chunkX = Chunk.getChunkKeyX(chunkKey);
+    int chunkZ = Chunk.getChunkKeyZ(chunkKey);
+
+    for (int dx = -1; dx <= 1; dx++)
+      for (int dz = -1; dz <= 1; dz++)
+        chunkKeys.add(Chunk.getChunkKey(chunkX + dx, chunkZ + dz));
+
+  }
+
+  private static boolean isNearEmitter(PlayerLight light, long chunkKey) {
+
+    int chunkX = Chunk.getChunkKeyX(chunkKey);
+    int chunkZ = Chunk.getChunkKeyZ(chunkKey);
+
+    for (int dx = -1; dx <= 1; dx++)
+      for (int dz = -1; dz <= 1; dz++)
+        if (light.emitterChunks.contains(chunkX + dx, chunkZ + dz)) return true;
+
+    return false;
+
+  }
+
+  private static long chunkKeyOf(long blockKey) {
+    return Chunk.getChunkKey(BlockKey.getX(blockKey) >> 4, BlockKey.getZ(blockKey) >> 4);
+  }
+
+  /**
+   * Applies a job on the engine thread.
+   * @return The section keys whose fake light changed
+   */
+  private Set<Long> propagate(UUID uuid, PlayerLight light, LightJob job) {
+
+    var propagation = new Propagation(uuid, light, job.snapshots(), plugin.getFakeBlockOverlay());
+
+    // Emitters that went away or got dimmer take their light with them first
+    for (int i = 0; i < job.emitterKeys().length; i++) {
+
+      long key = job.emitterKeys()[i];
+      int x = BlockKey.getX(key), y = BlockKey.getY(key), z = BlockKey.getZ(key);
+
+      if (job.newLevels()[i] > 0) light.emitters.put(key, job.newLevels()[i]);
+      else light.emitters.remove(key);
+
+      if (job.oldLevels()[i] > 0) propagation.darken(x, y, z);
+
+    }
+
+    // Blocks that became opaque cut off the light passing through them
+    for (long key : job.blockKeys()) {
+
+      int x = BlockKey.getX(key), y = BlockKey.getY(key), z = BlockKey.getZ(key);
+
+      if (!light.emitters.containsKey(key) && propagation.get(x, y, z) > 0 && propagation.isOpaque(x, y, z))
+        propagation.darken(x, y, z);
+
+    }
+
+    for (int i = 0; i < job.emitterKeys().length; i++) {
+
+      long key = job.emitterKeys()[i];
+      if (job.newLevels()[i] > 0)
+        propagation.light(BlockKey.getX(key), BlockKey.getY(key), BlockKey.getZ(key), job.newLevels()[i]);
+
+    }
+
+    // Blocks that became see-through let their neighbours' light in
+    for (long key : job.blockKeys()) {
+
+      int x = BlockKey.getX(key), y = BlockKey.getY(key), z = BlockKey.getZ(key);
+      if (propagation.isOpaque(x, y, z)) continue;
+
+      for (var offset : NEIGHBOURS) {
+        int level = propagation.get(x + offset[0], y + offset[1], z + offset[2]);
+        if (level > 1) propagation.relight(x + offset[0], y + offset[1], z + offset[2], level);
+      }
+
+    }
+
+    propagation.spread();
+
+    publish(light, propagation.changedSections);
+
+    return propagation.changedSections;
+
+  }
+
+  private void publish(PlayerLight light, Set<Long> changedSections) {
+
+    for (long sectionKey : changedSections) {
+
+      var section = light.sections.get(sectionKey);
+      long chunkKey = Chunk.getChunkKey(Chunk.getSectionKeyX(sectionKey), Chunk.getSectionKeyZ(sectionKey));
+      int sectionY = Chunk.getSectionKeyY(sectionKey);
+
+      if (section == null || Light.isAllZero(section)) {
+
+        light.sections.remove(sectionKey);
+
+        light.published.computeIfPresent(chunkKey, (key, chunk) -> {
+          chunk.remove(sectionY);
+          return chunk.isEmpty() ? null : chunk;
+        });
+
+        continue;
+
+      }
+
+      // Uniform sections share the pooled copy instead of getting their own
+      var interned = LightSectionPool.intern(section);
+      light.published.computeIfAbsent(chunkKey, key -> new ConcurrentHashMap<>()).put(sectionY, interned == section ? section.clone() : interned);
+
+    }
+
+  }
+
+  /**
+   * Sends the changed sections, merged with the real block light, grouped into one packet per chunk.
+   */
+  private void sendChanges(UUID uuid, PlayerLight light, Set<Long> changedSections) {
+
+    var player = plugin.getServer().getPlayer(uuid);
+    if (player == null || players.get(uuid) != light || player.getWorld() != light.world) return;
+
+    var level = ((CraftWorld) light.world).getHandle();
+    var blockLight = level.getLightEngine().getLayerListener(LightLayer.BLOCK);
+
+    int minSection = light.world.getMinHeight() >> 4;
+
+    Map<Long, List<Long>> sectionsByChunk = new HashMap<>();
+
+    for (long sectionKey : changedSections)
+      sectionsByChunk.computeIfAbsent(Chunk.getChunkKey(Chunk.getSectionKeyX(sectionKey), Chunk.getSectionKeyZ(sectionKey)), key -> new ArrayList<>())
+        .add(sectionKey);
+
+    for (var entry : sectionsByChunk.entrySet()) {
+
+      var fakeSections = light.published.getOrDefault(entry.getKey(), Map.of());
+
+      var sectionKeys = entry.getValue();
+      sectionKeys.sort(Long::compare);
+
+      BitSet mask = new BitSet();
+      Map<Integer, byte[]> arrays = new HashMap<>();
+
+      for (long sectionKey : sectionKeys) {
+
+        int sectionX = Chunk.getSectionKeyX(sectionKey);
+        int sectionY = Chunk.getSectionKeyY(sectionKey);
+        int sectionZ = Chunk.getSectionKeyZ(sectionKey);
+
+        var realLayer = blockLight.getDataLayerData(SectionPos.of(sectionX, sectionY, sectionZ));
+        var fake = fakeSections.get(sectionY);
+
+        byte[] merged;
+
+        if (realLayer == null) merged = fake != null ? fake : LightSectionPool.dark();
+        else {
+          merged = realLayer.getData().clone();
+          if (fake != null) Light.max(merged, fake);
+        }
+
+        int index = sectionY - minSection + 1;
+
+        mask.set(index);
+        arrays.put(index, merged);
+
+      }
+
+      var ordered = new byte[mask.cardinality()][];
+      int arrayIndex = 0;
+
+      for (int index = mask.nextSetBit(0); index >= 0; index = mask.nextSetBit(index + 1))
+        ordered[arrayIndex++] = arrays.get(index);
+
+      LightPacket.sendBlockLight(player, Chunk.getChunkKeyX(entry.getKey()), Chunk.getChunkKeyZ(entry.getKey()), mask, ordered);
+
+    }
+
+  }
+
+  /**
+   * The working state of one job: the darkening and lighting queues over the player's sections.
+   */
+  private static final class Propagation {
+
+    private final UUID uuid;
+    private final PlayerLight light;
+    private final Map<Long, ChunkSnapshot> snapshots;
+
+    private final int minY;
+    private final int maxY;
+
+    private final FakeBlockOverlay overlay;
+
+    private final Set<Long> changedSections = new HashSet<>();
+
+    private final LevelQueue darkenQueue = new LevelQueue();
+    private final LevelQueue lightQueue = new LevelQueue();
+
+    private long cachedSectionKey = Long.MIN_VALUE;
+    private byte[] cachedSection;
+
+    private Propagation(UUID uuid, PlayerLight light, Map<Long, ChunkSnapshot> snapshots, FakeBlockOverlay overlay) {
+      this.uuid = uuid;
+      this.light = light;
+      this.snapshots = snapshots;
+      this.overlay = overlay;
+      this.minY = light.world.getMinHeight();
+      this.maxY = light.world.getMaxHeight();
+    }
+
+    int get(int x, int y, int z) {
+      var section = section(x, y, z, false);
+      return section == null ? 0 : Light.getLightValue(section, x & 15, y & 15, z & 15);
+    }
+
+    void set(int x, int y, int z, int level) {
+
+      var section = section(x, y, z, level > 0);
+      if (section == null) return;
+
+      Light.setLightValue(section, x & 15, y & 15, z & 15, level);
+      changedSections.add(cachedSectionKey);
+
+    }
+
+    boolean isOpaque(int x, int y, int z) {
+
+      if (y < minY || y >= maxY) return true;
+
+      var blockData = overlay.get(uuid, x, y, z);
+
+      if (blockData == null) {
+        var snapshot = snapshots.get(Chunk.getChunkKey(x >> 4, z >> 4));
+        if (snapshot == null) return true; // unknown chunks stop the light
+        blockData = snapshot.getBlockData(x & 15, y, z & 15);
+      }
+
+      return blockData.getMaterial().isOccluding();
+
+    }
+
+    /**
+     * Removes the light at a position and everything that depended on it.
+     */
+    void darken(int x, int y, int z) {
+
+      int level = get(x, y, z);
+      if (level == 0) return;
+
+      set(x, y, z, 0);
+      darkenQueue.add(BlockKey.pack(x, y, z), level);
+
+    }
+
+    void light(int x, int y, int z, int level) {
+      if (level <= get(x, y, z)) return;
+      set(x, y, z, level);
+      lightQueue.add(BlockKey.pack(x, y, z), level);
+    }
+
+    /**
+     * Spreads an existing level again, without changing it.
+     */
+    void relight(int x, int y, int z, int level) {
+      lightQueue.add(BlockKey.pack(x, y, z), level);
+    }
+
+    void spread() {
+
+      while (!darkenQueue.isEmpty()) {
+
+        long key = darkenQueue.peekKey();
+        int level = darkenQueue.pollLevel();
+
+        int x = BlockKey.getX(key), y = BlockKey.getY(key), z = BlockKey.getZ(key);
+
+        for (var offset : NEIGHBOURS) {
+
+          int nx = x + offset[0], ny = y + offset[1], nz = z + offset[2];
+          int neighbourLevel = get(nx, ny, nz);
+
+          if (neighbourLevel == 0) continue;
+
+          if (neighbourLevel < level) {
+
+            set(nx, ny, nz, 0);
+            darkenQueue.add(BlockKey.pack(nx, ny, nz), neighbourLevel);
+
+            // A surviving emitter in the darkened area lights itself up again
+            var emitterLevel = light.emitters.get(BlockKey.pack(nx, ny, nz));
+            if (emitterLevel != null) light(nx, ny, nz, emitterLevel);
+
+          }
+          else relight(nx, ny, nz, neighbourLevel);
+
+        }
+
+      }
+
+      while (!lightQueue.isEmpty()) {
+
+        long key = lightQueue.peekKey();
+        int level = lightQueue.pollLevel();
+
+        int x = BlockKey.getX(key), y = BlockKey.getY(key), z = BlockKey.getZ(key);
+
+        // Superseded by a later change to this position
+        if (get(x, y, z) != level || level <= 1) continue;
+
+        for (var offset : NEIGHBOURS) {
+
+          int nx = x + offset[0], ny = y + offset[1], nz = z + offset[2];
+
+          if (get(nx, ny, nz) >= level - 1 || isOpaque(nx, ny, nz)) continue;
+
+          set(nx, ny, nz, level - 1);
+          lightQueue.add(BlockKey.pack(nx, ny, nz), level - 1);
+
+        }
+
+      }
+
+    }
+
+    private byte[] section(int x, int y, int z, boolean create) {
+
+      long sectionKey = Chunk.getSectionKey(x >> 4, y >> 4, z >> 4);
+
+      if (sectionKey == cachedSectionKey && cachedSection != null) return cachedSection;
+
+      var section = light.sections.get(sectionKey);
+
+      if (section == null && create) {
+        section = new byte[Light.SECTION_BYTES];
+        light.sections.put(sectionKey, section);
+      }
+
+      if (section != null) {
+        cachedSectionKey = sectionKey;
+        cachedSection = section;
+      }
+
+      return section;
+
+    }
+
+  }
+
+  /**
+   * A growable FIFO of positions with a light level, without boxing.
+   */
+  private static final class LevelQueue {
+
+    private long[] keys = new long[256];
+    private byte[] levels = new byte[256];
+
+    private int head;
+    private int tail;
+
+    boolean isEmpty() {
+      return head == tail;
+    }
+
+    void add(long key, int level) {
+
+      if (tail == keys.length) {
+
+        int size = tail - head;
+
+        // Compact first, only grow when the queue is actually full
+        if (head > keys.length >> 1) {
+          System.arraycopy(keys, head, keys, 0, size);
+          System.arraycopy(levels, head, levels, 0, size);
+        }
+        else {
+          keys = Arrays.copyOfRange(keys, head, head + (keys.length << 1));
+          levels = Arrays.copyOfRange(levels, head, head + (levels.length << 1));
+        }
+
+        head = 0;
+        tail = size;
+
+      }
+
+      keys[tail] = key;
+      levels[tail++] = (byte) level;
+
+    }
+
+    long peekKey() {
+      return keys[head];
+    }
+
+    int pollLevel() {
+      return levels[head++];
+    }
+
+  }
+
+}
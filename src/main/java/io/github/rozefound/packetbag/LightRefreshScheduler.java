@@ -0,0 +1,109 @@
+package io.github.rozefound.packetbag;
+
+import io.github.rozefound.packetbag.jfr.LightRefreshEvent;
+import io.github.rozefound.packetbag.listeners.PlayerChunkLoadListener;
+import io.github.rozefound.packetbag.utils.Chunk;
+import io.papermc.paper.event.packet.PlayerChunkLoadEvent;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.scheduler.BukkitRunnable;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Re-darkens only the chunks whose client-side light could have changed since the last send.
+ * <p>
+ * When the client receives a chunk it re-propagates light across the borders of that chunk and
+ * its neighbours, so those chunks are marked dirty and handed to the {@link LightUpdateCoalescer}
+ * on the next refresh, once the client has had time to run its own light engine.
+ */
+public final class LightRefreshScheduler implements Listener {
+
+  private final Main plugin;
+  private final PlayerChunkLoadListener playerChunkLoadListener;
+  private final LightUpdateCoalescer lightUpdateCoalescer;
+
+  private final Map<UUID, Set<Long>> dirtyChunks = new ConcurrentHashMap<>();
+
+  public LightRefreshScheduler(Main plugin, PlayerChunkLoadListener playerChunkLoadListener, LightUpdateCoalescer lightUpdateCoalescer) {
+    this.plugin = plugin;
+    this.playerChunkLoadListener = playerChunkLoadListener;
+    this.lightUpdateCoalescer = lightUpdateCoalescer;
+  }
+
+  public void start(long period) {
+
+    new BukkitRunnable() {
+      @Override
+      public void run() {
+        refresh();
+      }
+    }.runTaskTimer(plugin, 1L, period);
+
+  }
+
+  public void markDirty(UUID uuid, int chunkX, int chunkZ) {
+    dirtyChunks.computeIfAbsent(uuid, key -> ConcurrentHashMap.newKeySet()).add(Chunk.getChunkKey(chunkX, chunkZ));
+  }
+
+  private void refresh() {
+
+    var lightRefresh = new LightRefreshEvent();
+    lightRefresh.begin();
+
+    int players = 0, dirtyCount = 0, refreshed = 0;
+
+    for (var player : plugin.getServer().getOnlinePlayers()) {
+
+      var dirty = dirtyChunks.remove(player.getUniqueId());
+      if (dirty == null || dirty.isEmpty()) continue;
+
+      var chunks = playerChunkLoadListener.getPlayerLoadedChunks(player);
+      if (chunks == null) continue;
+
+      players++;
+      dirtyCount += dirty.size();
+
+      // Only chunks the client still has loaded are worth a packet
+      for (long chunkKey : dirty)
+        if (chunks.contains(chunkKey)) {
+          lightUpdateCoalescer.markChunk(player, Chunk.getChunkKeyX(chunkKey), Chunk.getChunkKeyZ(chunkKey));
+          refreshed++;
+        }
+
+    }
+
+    lightRefresh.end();
+
+    if (lightRefresh.shouldCommit()) {
+      lightRefresh.playerCount = players;
+      lightRefresh.dirtyChunks = dirtyCount;
+      lightRefresh.refreshedChunks = refreshed;
+      lightRefresh.commit();
+    }
+
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onPlayerChunkLoad(PlayerChunkLoadEvent event) {
+
+    var uuid = event.getPlayer().getUniqueId();
+    var chunk = event.getChunk();
+
+    for (int dx = -1; dx <= 1; dx++)
+      for (int dz = -1; dz <= 1; dz++)
+        markDirty(uuid, chunk.getX() + dx, chunk.getZ() + dz);
+
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onPlayerQuit(PlayerQuitEvent event) {
+    dirtyChunks.remove(event.getPlayer().getUniqueId());
+  }
+
+}
@@ -0,0 +1,119 @@
+package io.github.rozefound.packetbag;
+
+import com.destroystokyo.paper.event.server.ServerTickEndEvent;
+import io.github.rozefound.packetbag.utils.Chunk;
+import io.github.rozefound.packetbag.utils.LightPacket;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+import java.util.BitSet;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collects the light sections that need to be darkened for each player during a tick and
+ * sends a single UPDATE_LIGHT per chunk when the tick ends, instead of one per block change.
+ * <p>
+ * Sections can be marked from any thread, flushing happens on the main thread.
+ */
+public final class LightUpdateCoalescer implements Listener {
+
+  private final Main plugin;
+
+  private final Map<UUID, Map<Long, BitSet>> pendingSections = new ConcurrentHashMap<>();
+
+  public LightUpdateCoalescer(Main plugin) {
+    this.plugin = plugin;
+  }
+
+  public void markBlock(Player player, int x, int y, int z) {
+    markSection(player, x >> 4, y >> 4, z >> 4);
+  }
+
+  /**
+   * Marks a chunk section, given in section coordinates, to be darkened at the end of the tick.
+   */
+  public void markSection(Player player, int chunkX, int sectionY, int chunkZ) {
+
+    int lightSection = sectionY - (player.getWorld().getMinHeight() >> 4) + 1;
+
+    pendingSections.computeIfAbsent(player.getUniqueId(), uuid -> new ConcurrentHashMap<>())
+      .compute(Chunk.getChunkKey(chunkX, chunkZ), (key, sections) -> {
+        if (sections == null) sections = new BitSet();
+        sections.set(lightSection);
+        return sections;
+      });
+
+  }
+
+  /**
+   * @see #markSection(Player, int, int, int)
+   * @see Chunk#getSectionKey(int, int, int)
+   */
+  public void markSection(Player player, long sectionKey) {
+    markSection(player, Chunk.getSectionKeyX(sectionKey), Chunk.getSectionKeyY(sectionKey), Chunk.getSectionKeyZ(sectionKey));
+  }
+
+  /**
+   * Marks every light section of a chunk, as derived from the height of the player's world.
+   */
+  public void markChunk(Player player, int chunkX, int chunkZ) {
+
+    var world = player.getWorld();
+    int lightSections = ((world.getMaxHeight() - world.getMinHeight()) >> 4) + 2;
+
+    pendingSections.computeIfAbsent(player.getUniqueId(), uuid -> new ConcurrentHashMap<>())
+      .compute(Chunk.getChunkKey(chunkX, chunkZ), (key, sections) -> {
+        if (sections == null) sections = new BitSet(lightSections);
+        sections.set(0, lightSections);
+        return sections;
+      });
+
+  }
+
+  /**
+   * Sends one light update per chunk with everything marked since the last flush.
+   */
+  public void flush() {
+
+    for (var entry : pendingSections.entrySet()) {
+
+      var chunks = entry.getValue();
+      if (chunks.isEmpty()) continue;
+
+      var player = plugin.getServer().getPlayer(entry.getKey());
+
+      if (player == null) {
+        pendingSections.remove(entry.getKey(), chunks);
+        continue;
+      }
+
+      for (var chunkKey : chunks.keySet()) {
+
+        // Removing first means anything marked concurrently lands in a fresh set for the next tick
+        var sections = chunks.remove(chunkKey);
+        if (sections == null) continue;
+
+        LightPacket.sendDarkLight(player, Chunk.getChunkKeyX(chunkKey), Chunk.getChunkKeyZ(chunkKey), sections, true, false);
+
+      }
+
+    }
+
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onTickEnd(ServerTickEndEvent event) {
+    flush();
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onPlayerQuit(PlayerQuitEvent event) {
+    pendingSections.remove(event.getPlayer().getUniqueId());
+  }
+
+}
@@ -4,36 +4,46 @@ import com.github.retrooper.packetevents.PacketEvents;
 import com.github.retrooper.packetevents.event.PacketListenerPriority;
 import io.github.rozefound.packetbag.listeners.PacketEventListener;
 import io.github.rozefound.packetbag.listeners.PlayerChunkLoadListener;
-import io.github.rozefound.packetbag.utils.LightPacket;
+import io.github.rozefound.packetbag.utils.Metrics;
 import io.papermc.paper.plugin.lifecycle.event.types.LifecycleEvents;
 import net.minecraft.SharedConstants;
 import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.plugin.java.JavaPlugin;
-import org.bukkit.scheduler.BukkitRunnable;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.checkerframework.framework.qual.DefaultQualifier;
-import org.joml.Vector2i;
 
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
-import java.util.stream.IntStream;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 @DefaultQualifier(NonNull.class)
 public final class Main extends JavaPlugin implements Listener {
 
+  private PacketEventListener packetEventListener;
   private PlayerBoundsManager playerBoundsManager;
   private PlayerChunkLoadListener playerChunkLoadListener;
+  private LightRefreshScheduler lightRefreshScheduler;
   private TestCommand testCommand;
 
-  private final Map<Player, Integer> playerViewDistance = new HashMap<>();
+  private final PlayerFeatures playerFeatures = new PlayerFeatures();
+  private final FakeBlockOverlay fakeBlockOverlay = new FakeBlockOverlay(playerFeatures, getLogger());
+  private final LightUpdateCoalescer lightUpdateCoalescer = new LightUpdateCoalescer(this);
+  private final FakeBlockSendQueue fakeBlockSendQueue = new FakeBlockSendQueue(this);
+  private final FakeLightEngine fakeLightEngine = new FakeLightEngine(this);
+  private final OcclusionCache occlusionCache = new OcclusionCache();
+  private final ShapeSpawner shapeSpawner = new ShapeSpawner(this);
+
+  private final Map<UUID, Integer> playerViewDistance = new ConcurrentHashMap<>();
 
   @Override
   public void onLoad() {
+    packetEventListener = new PacketEventListener(this);
     PacketEvents.getAPI().getEventManager().registerListener(
-      new PacketEventListener(this), PacketListenerPriority.NORMAL);
+      packetEventListener, PacketListenerPriority.NORMAL);
   }
   @Override
   public void onEnable() {
@@ -53,58 +63,110 @@ public final class Main extends JavaPlugin implements Listener {
 
     getServer().getPluginManager().registerEvents(playerBoundsManager, this);
     getServer().getPluginManager().registerEvents(playerChunkLoadListener, this);
+    getServer().getPluginManager().registerEvents(playerFeatures, this);
+    getServer().getPluginManager().registerEvents(fakeBlockOverlay, this);
+    getServer().getPluginManager().registerEvents(lightUpdateCoalescer, this);
+    getServer().getPluginManager().registerEvents(fakeBlockSendQueue, this);
+    getServer().getPluginManager().registerEvents(fakeLightEngine, this);
+    getServer().getPluginManager().registerEvents(occlusionCache, this);
+    getServer().getPluginManager().registerEvents(shapeSpawner, this);
 
     startLightUpdateTask();
 
+    Metrics.registerGauges("sendQueue.pendingSections", fakeBlockSendQueue::getPendingSectionsByPlayer);
+    Metrics.registerGauges("sendQueue.parkedSections", fakeBlockSendQueue::getParkedSectionsByPlayer);
+    Metrics.registerGauge("occlusionCache.sections", occlusionCache::size);
+    Metrics.registerGauges("overlay.blocks", fakeBlockOverlay::getBlocksByPlayer);
+    Metrics.registerGauge("overlay.bytes", fakeBlockOverlay::getEstimatedBytes);
+    Metrics.registerGauge("shapes.pending", shapeSpawner::getPendingJobs);
+
+  }
+
+  @Override
+  public void onDisable() {
+    fakeLightEngine.shutdown();
+    shapeSpawner.shutdown();
+  }
+
+  public PacketEventListener getPacketEventListener() {
+    return packetEventListener;
   }
 
   public PlayerBoundsManager getPlayerBoundsManager() {
     return playerBoundsManager;
   }
 
-  public void startLightUpdateTask() {
+  public PlayerChunkLoadListener getPlayerChunkLoadListener() {
+    return playerChunkLoadListener;
+  }
 
-    new BukkitRunnable() {
-      @Override
-      public void run() {
+  public PlayerFeatures getPlayerFeatures() {
+    return playerFeatures;
+  }
 
-        for (var player : getServer().getOnlinePlayers()) {
+  public FakeBlockOverlay getFakeBlockOverlay() {
+    return fakeBlockOverlay;
+  }
 
-          var chunks = playerChunkLoadListener.getPlayerLoadedChunks(player);
-          if (chunks == null) return;
+  public LightUpdateCoalescer getLightUpdateCoalescer() {
+    return lightUpdateCoalescer;
+  }
 
-          Map<Vector2i, Set<Integer>> chunkSectorsMap = new HashMap<>();
+  public FakeBlockSendQueue getFakeBlockSendQueue() {
+    return fakeBlockSendQueue;
+  }
 
-          if (chunks.isEmpty()) return;
+  public FakeLightEngine getFakeLightEngine() {
+    return fakeLightEngine;
+  }
 
-          for (var chunk : chunks) {
+  public OcclusionCache getOcclusionCache() {
+    return occlusionCache;
+  }
 
-            Set<Integer> sectors = new HashSet<>();
-            IntStream.range(0, 20).forEach(sectors::add);
-            chunkSectorsMap.put(new Vector2i(chunk.getX(), chunk.getZ()), sectors);
+  public ShapeSpawner getShapeSpawner() {
+    return shapeSpawner;
+  }
 
-          }
+  public void startLightUpdateTask() {
 
-          LightPacket.sendDarkLight(player, chunkSectorsMap, true, false);
+    lightRefreshScheduler = new LightRefreshScheduler(this, playerChunkLoadListener, lightUpdateCoalescer);
 
-        }
+    getServer().getPluginManager().registerEvents(lightRefreshScheduler, this);
+    lightRefreshScheduler.start(20L);
 
-      }
-    }.runTaskTimer(this, 1L, 20L);
   }
 
   public int getPlayerViewDistance(Player player) {
-    return playerViewDistance.getOrDefault(player, getServer().getViewDistance());
+    return playerViewDistance.getOrDefault(player.getUniqueId(), getServer().getViewDistance());
   }
 
+  /**
+   * Records the view distance a client asked for. Client settings arrive on Netty threads, so
+   * the change is applied, and borders and parked sends follow it, on the main thread.
+   */
   public void setPlayerViewDistance(Player player, int viewDistance) {
 
-    var oldviewDistance = getPlayerViewDistance(player);
-    playerViewDistance.put(player, Math.min(viewDistance, getServer().getViewDistance()));
+    getServer().getScheduler().runTask(this, () -> {
+
+      if (!player.isOnline()) return;
 
-    if (oldviewDistance != viewDistance) {
-      playerBoundsManager.onUpdate(player);
-    }
+      var oldviewDistance = getPlayerViewDistance(player);
+      var newViewDistance = Math.min(viewDistance, getServer().getViewDistance());
+      playerViewDistance.put(player.getUniqueId(), newViewDistance);
+
+      if (oldviewDistance != newViewDistance) {
+        playerBoundsManager.onUpdate(player);
+        fakeBlockSendQueue.unparkAll(player);
+      }
+
+    });
 
   }
+
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onPlayerQuit(PlayerQuitEvent event) {
+    playerViewDistance.remove(event.getPlayer().getUniqueId());
+  }
+
 }
@@ -0,0 +1,388 @@
+package io.github.rozefound.packetbag;
+
+import io.github.rozefound.packetbag.utils.Chunk;
+import net.minecraft.world.level.block.state.BlockState;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.craftbukkit.CraftWorld;
+import org.bukkit.craftbukkit.block.data.CraftBlockData;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockBurnEvent;
+import org.bukkit.event.block.BlockExplodeEvent;
+import org.bukkit.event.block.BlockFadeEvent;
+import org.bukkit.event.block.BlockFormEvent;
+import org.bukkit.event.block.BlockGrowEvent;
+import org.bukkit.event.block.BlockPistonExtendEvent;
+import org.bukkit.event.block.BlockPistonRetractEvent;
+import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.block.LeavesDecayEvent;
+import org.bukkit.event.entity.EntityChangeBlockEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.StructureGrowEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Remembers which blocks of a chunk section are opaque, meaning both occluding and solid,
+ * as 4096 bits per section, shared by every player.
+ * <p>
+ * Sections are built on first use, from the live world on the main thread or from chunk
+ * snapshots elsewhere, and dropped again when a block in them changes or their chunk unloads.
+ * Bits follow the light array layout: index {@code y * 256 + z * 16 + x}.
+ * <p>
+ * Snapshot-built sections are only kept if their own section was not invalidated since the
+ * snapshot was taken, as they could otherwise bring back a state that was already replaced.
+ * <p>
+ * Block physics is deliberately not listened to: a single physics listener makes Paper build an
+ * event for every neighbour update on the server. The events that actually replace blocks
+ * outside of physics, such as growth, decay, pistons and falling blocks, are listened to instead.
+ */
+public final class OcclusionCache implements Listener {
+
+  public static final int UNKNOWN = -1;
+  public static final int OPEN = 0;
+  public static final int OPAQUE = 1;
+
+  private static final long[] EMPTY_SECTION = new long[64];
+
+  private static final int STAMP_BITS = 12;
+
+  private static final Map<BlockState, Boolean> opaqueStates = new ConcurrentHashMap<>();
+
+  private final Map<UUID, WorldCache> worlds = new ConcurrentHashMap<>();
+
+  private static final class WorldCache {
+
+    private final Map<Long, long[]> sections = new ConcurrentHashMap<>();
+
+    /** Ticks on every invalidation; snapshot views remember where it stood when they were created. */
+    private final AtomicLong clock = new AtomicLong();
+
+    /**
+     * The clock at each section's last invalidation, written before the section is removed.
+     * Sections share slots by hash, so a slot may report an invalidation of another section,
+     * costing a rebuild, but never misses one of its own.
+     */
+    private final AtomicLongArray stamps = new AtomicLongArray(1 << STAMP_BITS);
+
+    private void stamp(long sectionKey, long time) {
+      stamps.accumulateAndGet(slot(sectionKey), time, Math::max);
+    }
+
+    private boolean invalidatedSince(long sectionKey, long time) {
+      return stamps.get(slot(sectionKey)) > time;
+    }
+
+    private static int slot(long sectionKey) {
+      return (int) ((sectionKey * 0x9E3779B97F4A7C15L) >>> (64 - STAMP_BITS));
+    }
+
+  }
+
+  public static boolean isOpaque(BlockData blockData) {
+    return blockData.isOccluding() && blockData.getMaterial().isSolid();
+  }
+
+  private static boolean isOpaque(BlockState state) {
+    var opaque = opaqueStates.get(state);
+    return opaque != null ? opaque : opaqueStates.computeIfAbsent(state, key -> isOpaque(CraftBlockData.fromData(key)));
+  }
+
+  /**
+   * Reads occlusion on the main thread, building sections from the live world as needed. Chunks
+   * are never loaded for it: blocks in chunks that are not loaded read as {@link #UNKNOWN}.
+   */
+  public View view(World world) {
+
+    var cache = worldCache(world);
+    var level = ((CraftWorld) world).getHandle();
+
+    return new View(cache, world, (sectionX, sectionY, sectionZ) -> {
+
+      var chunk = level.getChunkSource().getChunkNow(sectionX, sectionZ);
+      if (chunk == null) return null;
+
+      int index = chunk.getSectionIndexFromSectionY(sectionY);
+      if (index < 0 || index >= chunk.getSectionsCount()) return null;
+
+      var section = chunk.getSection(index);
+      if (section.hasOnlyAir()) return EMPTY_SECTION;
+
+      var states = section.getStates();
+      long[] bits = new long[64];
+
+      for (int i = 0; i < 4096; i++)
+        if (isOpaque(states.get(i & 15, i >> 8, (i >> 4) & 15)))
+          bits[i >> 6] |= 1L << i;
+
+      return bits;
+
+    });
+
+  }
+
+  /**
+   * Reads occlusion from any thread, building missing sections from the given snapshots.
+   * Has to be created on the main thread, at the time the snapshots are taken.
+   */
+  public View view(World world, Map<Long, ChunkSnapshot> snapshots) {
+
+    var cache = worldCache(world);
+    long createdAt = cache.clock.get();
+
+    return new View(cache, world, (sectionX, sectionY, sectionZ) -> {
+
+      var snapshot = snapshots.get(Chunk.getChunkKey(sectionX, sectionZ));
+      if (snapshot == null) return null;
+
+      int baseY = sectionY << 4;
+      long[] bits = new long[64];
+
+      for (int i = 0; i < 4096; i++)
+        if (isOpaque(snapshot.getBlockData(i & 15, baseY + (i >> 8), (i >> 4) & 15)))
+          bits[i >> 6] |= 1L << i;
+
+      return bits;
+
+    }) {
+
+      @Override
+      void store(long sectionKey, long[] bits) {
+
+        cache.sections.put(sectionKey, bits);
+
+        // An invalidation may have raced the build; it stamps the section before removing it
+        if (cache.invalidatedSince(sectionKey, createdAt))
+          cache.sections.remove(sectionKey, bits);
+
+      }
+
+    };
+
+  }
+
+  @FunctionalInterface
+  private interface SectionBuilder {
+    /** @return The section's bits, or {@code null} when it is not available */
+    long[] build(int sectionX, int sectionY, int sectionZ);
+  }
+
+  /**
+   * Occlusion lookups for one world, remembering the last section used. Not thread-safe, meant
+   * to be used by a single computation.
+   */
+  public static class View {
+
+    private final WorldCache cache;
+    private final SectionBuilder builder;
+
+    private final int minY;
+    private final int maxY;
+
+    /** Sections built by this view, kept for its own use even when the shared cache refuses them. */
+    private final Map<Long, long[]> local = new HashMap<>();
+
+    private long cachedKey = Long.MIN_VALUE;
+    private long[] cachedBits;
+
+    private View(WorldCache cache, World world, SectionBuilder builder) {
+      this.cache = cache;
+      this.builder = builder;
+      this.minY = world.getMinHeight();
+      this.maxY = world.getMaxHeight();
+    }
+
+    /**
+     * @return {@link #OPAQUE}, {@link #OPEN}, or {@link #UNKNOWN} when the block is outside the world or not available
+     */
+    public int get(int x, int y, int z) {
+
+      if (y < minY || y >= maxY) return UNKNOWN;
+
+      long sectionKey = Chunk.getSectionKey(x >> 4, y >> 4, z >> 4);
+
+      if (sectionKey != cachedKey) {
+        cachedKey = sectionKey;
+        cachedBits = lookup(sectionKey, x >> 4, y >> 4, z >> 4);
+      }
+
+      if (cachedBits == null) return UNKNOWN;
+
+      int index = (y & 15) << 8 | (z & 15) << 4 | (x & 15);
+      return (int) (cachedBits[index >> 6] >>> index) & 1;
+
+    }
+
+    private long[] lookup(long sectionKey, int sectionX, int sectionY, int sectionZ) {
+
+      var bits = cache.sections.get(sectionKey);
+      if (bits != null) return bits;
+
+      bits = local.get(sectionKey);
+      if (bits != null) return bits;
+
+      bits = builder.build(sectionX, sectionY, sectionZ);
+      if (bits == null) return null;
+
+      store(sectionKey, bits);
+      local.put(sectionKey, bits);
+
+      return bits;
+
+    }
+
+    void store(long sectionKey, long[] bits) {
+      cache.sections.put(sectionKey, bits);
+    }
+
+  }
+
+  public void invalidate(Block block) {
+    invalidateSection(block.getWorld(), block.getX() >> 4, block.getY() >> 4, block.getZ() >> 4);
+  }
+
+  public void invalidateSection(World world, int sectionX, int sectionY, int sectionZ) {
+
+    var cache = worlds.get(world.getUID());
+    if (cache == null) return;
+
+    long sectionKey = Chunk.getSectionKey(sectionX, sectionY, sectionZ);
+
+    cache.stamp(sectionKey, cache.clock.incrementAndGet());
+    cache.sections.remove(sectionKey);
+
+  }
+
+  public void invalidateChunk(World world, int chunkX, int chunkZ) {
+
+    var cache = worlds.get(world.getUID());
+    if (cache == null) return;
+
+    long time = cache.clock.incrementAndGet();
+
+    for (int sectionY = world.getMinHeight() >> 4; sectionY < world.getMaxHeight() >> 4; sectionY++) {
+      long sectionKey = Chunk.getSectionKey(chunkX, sectionY, chunkZ);
+      cache.stamp(sectionKey, time);
+      cache.sections.remove(sectionKey);
+    }
+
+  }
+
+  public int size() {
+    return worlds.values().stream().mapToInt(cache -> cache.sections.size()).sum();
+  }
+
+  private WorldCache worldCache(World world) {
+    var cache = worlds.get(world.getUID());
+    return cache != null ? cache : worlds.computeIfAbsent(world.getUID(), uuid -> new WorldCache());
+  }
+
+  private void invalidateAll(List<Block> blocks) {
+    for (var block : blocks) invalidate(block);
+  }
+
+  /**
+   * Moved blocks leave their position and land one step further, and the piston head moves with them.
+   */
+  private void invalidatePiston(Block piston, List<Block> moved, BlockFace direction) {
+
+    invalidate(piston);
+    invalidate(piston.getRelative(direction));
+
+    for (var block : moved) {
+      invalidate(block);
+      invalidate(block.getRelative(direction));
+    }
+
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onBlockPlace(BlockPlaceEvent event) {
+    invalidate(event.getBlock());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onBlockBreak(BlockBreakEvent event) {
+    invalidate(event.getBlock());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onBlockForm(BlockFormEvent event) {
+    invalidate(event.getBlock());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onBlockFade(BlockFadeEvent event) {
+    invalidate(event.getBlock());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onBlockGrow(BlockGrowEvent event) {
+    invalidate(event.getBlock());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onBlockBurn(BlockBurnEvent event) {
+    invalidate(event.getBlock());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onLeavesDecay(LeavesDecayEvent event) {
+    invalidate(event.getBlock());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onEntityChangeBlock(EntityChangeBlockEvent event) {
+    invalidate(event.getBlock());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onStructureGrow(StructureGrowEvent event) {
+    for (var state : event.getBlocks()) invalidate(state.getBlock());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onPistonExtend(BlockPistonExtendEvent event) {
+    invalidatePiston(event.getBlock(), event.getBlocks(), event.getDirection());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onPistonRetract(BlockPistonRetractEvent event) {
+    invalidatePiston(event.getBlock(), event.getBlocks(), event.getDirection());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onBlockExplode(BlockExplodeEvent event) {
+    invalidateAll(event.blockList());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onEntityExplode(EntityExplodeEvent event) {
+    invalidateAll(event.blockList());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onChunkUnload(ChunkUnloadEvent event) {
+    invalidateChunk(event.getWorld(), event.getChunk().getX(), event.getChunk().getZ());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onWorldUnload(WorldUnloadEvent event) {
+    worlds.remove(event.getWorld().getUID());
+  }
+
+}
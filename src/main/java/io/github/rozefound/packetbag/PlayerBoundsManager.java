@@ -1,7 +1,15 @@
 package io.github.rozefound.packetbag;
 
-import io.github.rozefound.packetbag.utils.FakeBlock;
-import org.bukkit.Location;
+import io.github.rozefound.packetbag.jfr.BorderUpdateEvent;
+import io.github.rozefound.packetbag.utils.BlockKey;
+import io.github.rozefound.packetbag.utils.BlockMap;
+import io.github.rozefound.packetbag.utils.BlockSet;
+import io.github.rozefound.packetbag.utils.Chunk;
+import io.github.rozefound.packetbag.utils.ChunkKeySet;
+import io.github.rozefound.packetbag.utils.FakeBlockStore;
+import io.github.rozefound.packetbag.utils.Metrics;
+import io.papermc.paper.event.packet.PlayerChunkLoadEvent;
+import org.bukkit.ChunkSnapshot;
 import org.bukkit.Material;
 import org.bukkit.World;
 import org.bukkit.block.data.BlockData;
@@ -15,133 +23,465 @@ import org.joml.Vector3i;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.LongPredicate;
 
 public final class PlayerBoundsManager implements Listener {
 
+  private static final Metrics.Histogram DELTA_TIME = Metrics.timer("border.delta");
+
   private final Main plugin;
 
-  private final Map<UUID, Map<Location, BlockData>> originalBlockData = new HashMap<>();
+  private final Map<UUID, BorderState> borderStates = new HashMap<>();
 
   private final Map<UUID, Vector3i> playerLastSector = new HashMap<>();
 
   private final BlockData bordersMaterial = Material.BLACK_CONCRETE.createBlockData();
 
+  private final Executor asyncExecutor;
+  private final Executor mainThreadExecutor;
+
+  private boolean asyncComputation = true;
+
+  /**
+   * Border bookkeeping for a single player. Only ever touched from the main thread.
+   */
+  private static final class BorderState {
+
+    private World world;
+    /** The ring the last requested update moves towards; deltas are computed from here. */
+    private BorderRing targetRing;
+    /** Applies deltas strictly in the order they were requested. */
+    private CompletableFuture<Void> pending = CompletableFuture.completedFuture(null);
+    /** The ring of the last applied delta, which is what the client currently sees. */
+    private BorderRing appliedRing;
+    /**
+     * The border blocks this player was sent, kept apart from the overlay, which other features
+     * write to as well. Sections drop out as the border moves away from them.
+     */
+    private final FakeBlockStore borderBlocks = new FakeBlockStore();
+    /** Fake blocks from other features the border was drawn over, put back once it moves on. */
+    private final FakeBlockStore coveredBlocks = new FakeBlockStore();
+    /** Chunks the border moved over while they were not available, redone once the client gets them. */
+    private final ChunkKeySet skippedChunks = new ChunkKeySet();
+
+  }
+
+  /**
+   * The result of moving a border between two rings.
+   * @param shown Positions that should show the border
+   * @param hidden Positions that should show the real world
+   * @param skipped Chunks whose positions were left untouched because they were not available
+   */
+  private record BorderDelta(World world, BorderRing ring, BlockSet shown, BlockSet hidden, ChunkKeySet skipped) {}
+
   public PlayerBoundsManager(Main plugin) {
     this.plugin = plugin;
+    this.asyncExecutor = task -> plugin.getServer().getScheduler().runTaskAsynchronously(plugin, task);
+    this.mainThreadExecutor = task -> plugin.getServer().getScheduler().runTask(plugin, task);
+  }
+
+  public boolean isAsyncComputation() {
+    return asyncComputation;
+  }
+
+  /**
+   * Chooses whether border deltas are computed on the main thread against the live world,
+   * or asynchronously against chunk snapshots taken when the update was requested.
+   */
+  public void setAsyncComputation(boolean asyncComputation) {
+    this.asyncComputation = asyncComputation;
   }
 
-  public Map<Location, BlockData> getBorderBlocks(Player player) {
+  public BorderRing getBorderRing(Player player) {
 
     var viewDistance = plugin.getPlayerViewDistance(player);
     int bordersRadius = ((viewDistance - 1) * 16);
     int verticalDistance  = (int) ((viewDistance * 16) * 0.75);
 
-    Map<Location, BlockData> blocks = new HashMap<>();
-
     var center = player.getLocation();
     World world = center.getWorld();
 
-    int radiusSquared = bordersRadius * bordersRadius;
-
-    int centerX = center.getBlockX();
-    int centerZ = center.getBlockZ();
+    // Anchor the ring to the middle of the player's chunk section, so it only ever moves in whole chunk steps
+    int centerX = ((center.getBlockX() >> 4) << 4) + 8;
+    int centerY = ((center.getBlockY() >> 4) << 4) + 8;
+    int centerZ = ((center.getBlockZ() >> 4) << 4) + 8;
 
     int minY = world.getMinHeight();
-    int maxY = Math.min(center.getBlockY() + verticalDistance, world.getMaxHeight() - 1);
+    int maxY = Math.min(centerY + verticalDistance, world.getMaxHeight() - 1);
 
-    for (int x = -bordersRadius; x <= bordersRadius; x++) {
-      for (int z = -bordersRadius; z <= bordersRadius; z++) {
+    return new BorderRing(centerX, centerZ, bordersRadius, minY, maxY);
 
-        int distanceSquaredXZ = (x * x) + (z * z);
+  }
 
-        if (distanceSquaredXZ <= radiusSquared) {
-          Location topCapLoc = new Location(world, centerX + x, maxY, centerZ + z);
-          blocks.put(topCapLoc, bordersMaterial);
-        }
+  /**
+   * @return Whether the blocks were sent, {@code false} if the player's overlay refused them
+   */
+  public boolean sendFakeBlocks(Player player, BlockMap blocks) {
 
-        if (distanceSquaredXZ > (bordersRadius - 1) * (bordersRadius - 1) && distanceSquaredXZ <= radiusSquared) {
-          for (int y = minY + 1; y < maxY; y++) {
-            Location wallLoc = new Location(world, centerX + x, y, centerZ + z);
+    plugin.getLogger().info("Sending %d block updates to the player %s".formatted(blocks.size(), player.getName()));
 
-            if (!world.getBlockAt(wallLoc).getBlockData().isOccluding() || !world.getBlockAt(wallLoc).isSolid())
-              blocks.put(wallLoc, bordersMaterial);
-          }
-        }
-      }
-    }
+    if (!plugin.getFakeBlockOverlay().put(player, blocks)) return false;
 
-    return blocks;
+    plugin.getFakeBlockSendQueue().enqueue(player, blocks);
+    return true;
 
   }
 
-  public void sendFakeBlocks(Player player, Map<Location, BlockData> blocks) {
+  /**
+   * Shows the real world again at the given positions, as it is right now.
+   * Positions in chunks that are not loaded are only forgotten, the client does not have them either.
+   */
+  public void restoreBlocks(Player player, BlockSet positions) {
 
-    plugin.getLogger().info("Sending %d block updates to the player %s".formatted(blocks.size(), player.getName()));
-    FakeBlock.sendFakeBlocks(player, blocks);
+    plugin.getLogger().info("Restoring %d blocks for the player %s".formatted(positions.size(), player.getName()));
+
+    plugin.getFakeBlockOverlay().remove(player, positions);
+    plugin.getFakeBlockSendQueue().enqueue(player, readRealBlocks(player.getWorld(), positions));
 
   }
 
-  public void onEnable(Player player) {
+  /**
+   * Shows the real world again where the player still sees the given fake blocks, for features
+   * that share the overlay: positions something else has drawn over since are left alone.
+   */
+  public void restoreBlocks(Player player, BlockMap expected) {
+
+    var restored = plugin.getFakeBlockOverlay().removeIfUnchanged(player, expected);
+    if (restored.isEmpty()) return;
+
+    plugin.getFakeBlockSendQueue().enqueue(player, readRealBlocks(player.getWorld(), restored));
+
+  }
+
+  private static BlockMap readRealBlocks(World world, BlockSet positions) {
+
+    var realBlocks = new BlockMap(positions.size());
 
-    var borderBlocks = getBorderBlocks(player);
+    positions.forEach(key -> {
+      int x = BlockKey.getX(key), y = BlockKey.getY(key), z = BlockKey.getZ(key);
+      if (world.isChunkLoaded(x >> 4, z >> 4)) realBlocks.put(key, world.getBlockData(x, y, z));
+    });
 
-    Map<Location, BlockData> originalBlocks = new HashMap<>();
+    return realBlocks;
 
-    for (var location : borderBlocks.keySet())
-      originalBlocks.put(location, location.getBlock().getBlockData());
+  }
+
+  public void onEnable(Player player) {
+
+    var state = new BorderState();
+    state.world = player.getWorld();
 
-    originalBlockData.put(player.getUniqueId(), originalBlocks);
+    borderStates.put(player.getUniqueId(), state);
 
-    sendFakeBlocks(player, borderBlocks);
+    updateBorders(player, state, getBorderRing(player));
 
   }
 
   public void onDisable(Player player) {
 
-    var originalBlocks = originalBlockData.get(player.getUniqueId());
+    var state = borderStates.remove(player.getUniqueId());
 
-    if (!originalBlocks.isEmpty())
-      sendFakeBlocks(player, originalBlocks);
+    if (state != null && state.world == player.getWorld()) {
+      var positions = new BlockSet(state.borderBlocks.size());
+      state.borderBlocks.forEach((x, y, z, blockData) -> positions.add(x, y, z));
+      hideBorder(player, state, positions);
+    }
 
-    originalBlockData.remove(player.getUniqueId());
     playerLastSector.remove(player.getUniqueId());
 
   }
 
   public void onUpdate(Player player) {
 
-    if (!isEnabled(player)) return;
+    var state = borderStates.get(player.getUniqueId());
+    if (state == null) return;
+
+    var borderUpdate = new BorderUpdateEvent();
+    borderUpdate.begin();
+
+    // The client has already dropped everything from the previous world, so there is nothing to restore
+    if (state.world != player.getWorld()) {
+      state.world = player.getWorld();
+      state.targetRing = null;
+      state.appliedRing = null;
+      state.borderBlocks.clear();
+      state.coveredBlocks.clear();
+      state.skippedChunks.clear();
+    }
 
-    var originalBlocks = originalBlockData.get(player.getUniqueId());
-    var newBorders = getBorderBlocks(player);
+    updateBorders(player, state, getBorderRing(player));
 
-    var diffAdd = newBorders.keySet().stream()
-      .filter(loc -> !originalBlocks.containsKey(loc))
-      .collect(Collectors.toMap(loc -> loc, loc -> bordersMaterial));
+    // Asynchronous updates are only requested here, their blocks show up in the "apply" event
+    commitBorderUpdate(borderUpdate, player, "update", asyncComputation, 0, 0);
+
+  }
+
+  private static void commitBorderUpdate(BorderUpdateEvent borderUpdate, Player player, String operation, boolean async, int shownBlocks, int hiddenBlocks) {
+
+    borderUpdate.end();
+    if (!borderUpdate.shouldCommit()) return;
+
+    borderUpdate.player = player.getName();
+    borderUpdate.operation = operation;
+    borderUpdate.async = async;
+    borderUpdate.shownBlocks = shownBlocks;
+    borderUpdate.hiddenBlocks = hiddenBlocks;
+    borderUpdate.commit();
+
+  }
+
+  /**
+   * Moves the border towards {@code ring}, visiting only the positions whose membership
+   * changes. In async mode the occlusion tests run off the main thread against chunk
+   * snapshots, and the finished delta is applied back on the main thread in request order.
+   */
+  private void updateBorders(Player player, BorderState state, BorderRing ring) {
+
+    if (ring.equals(state.targetRing)) return;
+
+    var from = state.targetRing;
+    var world = state.world;
+
+    state.targetRing = ring;
+
+    CompletableFuture<BorderDelta> delta;
+
+    if (asyncComputation) {
+      var loadedChunks = new ChunkKeySet();
+      var occlusion = plugin.getOcclusionCache().view(world, captureSnapshots(world, from, ring, loadedChunks));
+      delta = CompletableFuture.supplyAsync(() -> computeDelta(world, from, ring, occlusion, loadedChunks::contains), asyncExecutor);
+    }
+    else {
+      LongPredicate chunkLoaded = chunkKey -> world.isChunkLoaded(Chunk.getChunkKeyX(chunkKey), Chunk.getChunkKeyZ(chunkKey));
+      delta = CompletableFuture.completedFuture(computeDelta(world, from, ring, plugin.getOcclusionCache().view(world), chunkLoaded));
+    }
+
+    if (state.pending.isDone() && delta.isDone()) {
+      applyDelta(player, state, delta.join());
+      return;
+    }
+
+    state.pending = state.pending
+      .thenCombine(delta, (ignored, result) -> result)
+      .thenAcceptAsync(result -> applyDelta(player, state, result), mainThreadExecutor)
+      .exceptionally(throwable -> {
+        plugin.getLogger().severe("Failed to update borders for %s: %s".formatted(player.getName(), throwable));
+        return null;
+      });
+
+  }
+
+  /**
+   * Snapshots every loaded chunk that holds a wall column of the new ring, the only columns
+   * whose blocks are read. Caps only need their chunk to be loaded, which is recorded in
+   * {@code loadedChunks} for every chunk of the new disc that changed.
+   */
+  private Map<Long, ChunkSnapshot> captureSnapshots(World world, BorderRing from, BorderRing to, ChunkKeySet loadedChunks) {
+
+    Map<Long, ChunkSnapshot> snapshots = new HashMap<>();
+    var checkedChunks = new ChunkKeySet();
+
+    BorderRing.diffColumns(from, to, (x, z) -> {
+
+      if (!to.isInDisc(x, z)) return;
+
+      int chunkX = x >> 4, chunkZ = z >> 4;
+      long key = Chunk.getChunkKey(chunkX, chunkZ);
+
+      if (checkedChunks.add(key) && world.isChunkLoaded(chunkX, chunkZ)) loadedChunks.add(key);
+
+      if (to.isInWall(x, z) && loadedChunks.contains(key) && !snapshots.containsKey(key))
+        snapshots.put(key, world.getChunkAt(chunkX, chunkZ).getChunkSnapshot(false, false, false));
+
+    });
+
+    return snapshots;
+
+  }
 
-    var diffRemove = originalBlocks.entrySet().stream()
-      .filter(entry -> !newBorders.containsKey(entry.getKey()))
-      .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+  /**
+   * Walls only show where the real block is not opaque, which is answered from the occlusion
+   * cache; the real blocks themselves are never read here. Caps show wherever their chunk is loaded.
+   */
+  private BorderDelta computeDelta(World world, BorderRing from, BorderRing to, OcclusionCache.View occlusion, LongPredicate chunkLoaded) {
 
-    for (var location : diffAdd.keySet())
-      originalBlocks.put(location, location.getBlock().getBlockData());
+    long start = System.nanoTime();
 
-    for (var location : diffRemove.keySet())
-      originalBlocks.remove(location);
+    BlockSet shown = new BlockSet();
+    BlockSet hidden = new BlockSet();
+    ChunkKeySet skipped = new ChunkKeySet();
 
-    originalBlockData.put(player.getUniqueId(), originalBlocks);
+    BorderRing.diff(from, to, (x, y, z, role) -> {
 
-    if (!diffAdd.isEmpty())
-      sendFakeBlocks(player, diffAdd);
+      if (role == BorderRing.Role.NONE) {
+        hidden.add(x, y, z);
+        return;
+      }
+
+      // Positions in chunks that are not available are left untouched, and redone when the chunk arrives
+      long chunkKey = Chunk.getChunkKey(x >> 4, z >> 4);
+
+      if (role == BorderRing.Role.CAP) {
+        if (chunkLoaded.test(chunkKey)) shown.add(x, y, z);
+        else skipped.add(chunkKey);
+        return;
+      }
+
+      int opacity = occlusion.get(x, y, z);
+
+      if (opacity == OcclusionCache.UNKNOWN) {
+        skipped.add(chunkKey);
+        return;
+      }
+
+      if (opacity == OcclusionCache.OPAQUE) hidden.add(x, y, z);
+      else shown.add(x, y, z);
+
+    });
+
+    DELTA_TIME.recordSince(start);
+
+    return new BorderDelta(world, to, shown, hidden, skipped);
+
+  }
+
+  private void applyDelta(Player player, BorderState state, BorderDelta delta) {
+
+    // Borders were switched off or the player changed worlds while this delta was in flight
+    if (borderStates.get(player.getUniqueId()) != state || state.world != delta.world() || !player.isOnline()) return;
+
+    var borderUpdate = new BorderUpdateEvent();
+    borderUpdate.begin();
+
+    var uuid = player.getUniqueId();
+    var overlay = plugin.getFakeBlockOverlay();
+
+    BlockMap diffAdd = new BlockMap();
+
+    delta.shown().forEach(key -> {
+
+      if (state.borderBlocks.get(key) != null) return;
+
+      // Drawn over, not dropped: whatever another feature showed here comes back once the border moves on
+      var covered = overlay.get(uuid, BlockKey.getX(key), BlockKey.getY(key), BlockKey.getZ(key));
+      if (covered != null && !covered.equals(bordersMaterial)) state.coveredBlocks.put(key, covered);
+
+      diffAdd.put(key, bordersMaterial);
+
+    });
+
+    state.appliedRing = delta.ring();
+
+    if (!diffAdd.isEmpty()) {
+      if (sendFakeBlocks(player, diffAdd)) diffAdd.forEachKey(key -> state.borderBlocks.put(key, bordersMaterial));
+      else diffAdd.forEachKey(state.coveredBlocks::remove);
+    }
+
+    int hidden = hideBorder(player, state, delta.hidden());
+
+    commitBorderUpdate(borderUpdate, player, "apply", asyncComputation, diffAdd.size(), hidden);
+
+    var loadedChunks = plugin.getPlayerChunkLoadListener();
+
+    delta.skipped().forEach(chunkKey -> {
+      state.skippedChunks.add(chunkKey);
+      // A chunk that reached the client while the delta was being computed will not be announced again
+      if (loadedChunks.isChunkLoaded(uuid, chunkKey)) refreshChunk(player, state, chunkKey);
+    });
+
+  }
+
+  /**
+   * Redoes the border in one chunk against the ring the client currently sees, for a chunk that
+   * was not available when the border last moved over it.
+   */
+  private void refreshChunk(Player player, BorderState state, long chunkKey) {
+
+    var ring = state.appliedRing;
+    var world = state.world;
+
+    int chunkX = Chunk.getChunkKeyX(chunkKey), chunkZ = Chunk.getChunkKeyZ(chunkKey);
+    if (ring == null || !world.isChunkLoaded(chunkX, chunkZ)) return;
+
+    state.skippedChunks.remove(chunkKey);
+
+    var occlusion = plugin.getOcclusionCache().view(world);
+
+    BlockSet shown = new BlockSet();
+    BlockSet hidden = new BlockSet();
+
+    for (int x = chunkX << 4; x < (chunkX << 4) + 16; x++)
+      for (int z = chunkZ << 4; z < (chunkZ << 4) + 16; z++) {
+
+        if (!ring.isInDisc(x, z)) continue;
+
+        shown.add(x, ring.maxY(), z);
+        if (!ring.isInWall(x, z)) continue;
+
+        for (int y = ring.minY() + 1; y < ring.maxY(); y++)
+          if (occlusion.get(x, y, z) == OcclusionCache.OPAQUE) hidden.add(x, y, z);
+          else shown.add(x, y, z);
+
+      }
+
+    applyDelta(player, state, new BorderDelta(world, ring, shown, hidden, new ChunkKeySet()));
+
+  }
+
+  /**
+   * Takes the border away from the given positions, wherever this player was sent one. Positions
+   * another feature has drawn over since are left to it; the rest show what the border covered,
+   * which is the real world unless it was another fake block.
+   * @return How many positions stopped showing the border
+   */
+  private int hideBorder(Player player, BorderState state, BlockSet positions) {
+
+    var ours = new BlockMap();
+
+    positions.forEach(key -> {
+      if (state.borderBlocks.remove(key) != null) ours.put(key, bordersMaterial);
+    });
+
+    if (ours.isEmpty()) return 0;
+
+    var restored = plugin.getFakeBlockOverlay().removeIfUnchanged(player, ours);
+
+    var uncovered = new BlockMap();
+    var realBlocks = new BlockSet();
+
+    ours.forEachKey(key -> {
+      var covered = state.coveredBlocks.remove(key);
+      if (!restored.contains(key)) return;
+      if (covered != null) uncovered.put(key, covered);
+      else realBlocks.add(key);
+    });
+
+    if (!uncovered.isEmpty())
+      sendFakeBlocks(player, uncovered);
+
+    if (!realBlocks.isEmpty())
+      restoreBlocks(player, realBlocks);
+
+    return restored.size();
+
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onPlayerChunkLoad(PlayerChunkLoadEvent event) {
+
+    var player = event.getPlayer();
+    var state = borderStates.get(player.getUniqueId());
+    if (state == null || state.world != event.getWorld()) return;
 
-    if (!diffRemove.isEmpty())
-      sendFakeBlocks(player, diffRemove);
+    long chunkKey = Chunk.getChunkKey(event.getChunk().getX(), event.getChunk().getZ());
+    if (state.skippedChunks.contains(chunkKey)) refreshChunk(player, state, chunkKey);
 
   }
 
   public boolean isEnabled(Player player) {
-    return originalBlockData.containsKey(player.getUniqueId());
+    return borderStates.containsKey(player.getUniqueId());
   }
 
   @EventHandler(priority = EventPriority.LOW)
@@ -0,0 +1,74 @@
+package io.github.rozefound.packetbag;
+
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Which packet rewrites apply to each player, as a bitmask the packet listener can check on
+ * Netty threads before decoding anything.
+ * <p>
+ * {@link Feature#DARKNESS} is on by default and can be switched off per player. The fake
+ * content features are switched on by the overlay and the light engine once they hold
+ * something for a player, and off again when they forget about them.
+ */
+public final class PlayerFeatures implements Listener {
+
+  public enum Feature {
+    /** Sky light suppression and re-darkening after block changes. */
+    DARKNESS,
+    /** Fake blocks written into block change and chunk packets. */
+    FAKE_BLOCKS,
+    /** Fake block light merged into light and chunk packets. */
+    FAKE_LIGHT;
+
+    private final int bit = 1 << ordinal();
+
+    public boolean isIn(int features) {
+      return (features & bit) != 0;
+    }
+
+  }
+
+  private static final int DEFAULT_FEATURES = Feature.DARKNESS.bit;
+
+  // Masks stay below 128, so the boxed values come from the Integer cache
+  private final Map<UUID, Integer> features = new ConcurrentHashMap<>();
+
+  public int get(UUID uuid) {
+    var playerFeatures = features.get(uuid);
+    return playerFeatures == null ? DEFAULT_FEATURES : playerFeatures;
+  }
+
+  public boolean has(Player player, Feature feature) {
+    return feature.isIn(get(player.getUniqueId()));
+  }
+
+  public void enable(UUID uuid, Feature feature) {
+    // A plain read first keeps repeated enables off the map's locks
+    if (feature.isIn(get(uuid))) return;
+    features.compute(uuid, (key, current) -> (current == null ? DEFAULT_FEATURES : current) | feature.bit);
+  }
+
+  public void disable(UUID uuid, Feature feature) {
+    if (!feature.isIn(get(uuid))) return;
+    features.compute(uuid, (key, current) -> (current == null ? DEFAULT_FEATURES : current) & ~feature.bit);
+  }
+
+  public void set(UUID uuid, Feature feature, boolean enabled) {
+    if (enabled) enable(uuid, feature);
+    else disable(uuid, feature);
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onPlayerQuit(PlayerQuitEvent event) {
+    features.remove(event.getPlayer().getUniqueId());
+  }
+
+}
@@ -0,0 +1,169 @@
+package io.github.rozefound.packetbag;
+
+import io.github.rozefound.packetbag.utils.BlockMap;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+
+/**
+ * Builds fake shapes on virtual threads and shows them to a player, keeping large shapes off
+ * the main thread.
+ * <p>
+ * Only the rasterization runs on the worker thread. The finished blocks are recorded in the
+ * {@link FakeBlockOverlay}, queued on the {@link FakeBlockSendQueue} and passed to the
+ * {@link FakeLightEngine} back on the main thread, and only if the player is still online and in
+ * the same world, so a disconnect can never leave a store behind. Each player has at most one
+ * shape in flight: a newer one, a disconnect or a world change cancels it, interrupting the
+ * worker. Once its blocks are built a shape counts as done and can no longer be cancelled.
+ */
+public final class ShapeSpawner implements Listener {
+
+  private final Main plugin;
+
+  private final ExecutorService executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("packet-bag-shape-", 0).factory());
+
+  private final Map<UUID, Job> jobs = new ConcurrentHashMap<>();
+
+  private static final class Job {
+
+    private final CompletableFuture<BlockMap> result = new CompletableFuture<>();
+    private volatile Future<?> task;
+
+    private void interrupt() {
+      var current = task;
+      if (current != null) current.cancel(true);
+    }
+
+  }
+
+  public ShapeSpawner(Main plugin) {
+    this.plugin = plugin;
+  }
+
+  /**
+   * Builds a shape off the main thread and shows it to the player, cancelling any shape still
+   * being built for them.
+   * @param shape Builds the blocks, on a virtual thread; may check for interruption to stop early
+   * @return Completes with the blocks once they were handed to the overlay and the send queue,
+   *         with no blocks if the overlay refused them, and is cancelled if the player left
+   */
+  public CompletableFuture<BlockMap> spawn(Player player, Supplier<BlockMap> shape) {
+
+    var uuid = player.getUniqueId();
+    var world = player.getWorld();
+    var job = new Job();
+
+    // Cancelling the returned future, from here or by the caller, stops the worker too
+    job.result.whenComplete((blocks, throwable) -> {
+      if (job.result.isCancelled()) {
+        jobs.remove(uuid, job);
+        job.interrupt();
+      }
+    });
+
+    var previous = jobs.put(uuid, job);
+    if (previous != null) previous.result.cancel(false);
+
+    job.task = executor.submit(() -> {
+
+      try {
+
+        var blocks = shape.get();
+
+        // Claiming the job settles any race with a newer shape
+        if (Thread.currentThread().isInterrupted() || !jobs.remove(uuid, job)) return;
+
+        if (blocks.isEmpty()) {
+          job.result.complete(blocks);
+          return;
+        }
+
+        plugin.getServer().getScheduler().runTask(plugin, () -> show(player, world, job, blocks));
+
+      }
+      catch (Throwable throwable) {
+        jobs.remove(uuid, job);
+        if (!job.result.isDone()) plugin.getLogger().log(Level.WARNING, "Failed to build a shape for %s".formatted(player.getName()), throwable);
+        job.result.completeExceptionally(throwable);
+      }
+
+    });
+
+    // Covers a cancellation that happened before the task was assigned
+    if (job.result.isCancelled()) job.interrupt();
+
+    return job.result;
+
+  }
+
+  /**
+   * Hands a finished shape over, on the main thread, where a disconnect or world change since
+   * the claim can no longer race the overlay into recreating the player's store.
+   */
+  private void show(Player player, World world, Job job, BlockMap blocks) {
+
+    if (!player.isOnline() || player.getWorld() != world) {
+      job.result.cancel(false);
+      return;
+    }
+
+    if (!plugin.getFakeBlockOverlay().put(player, blocks)) {
+      job.result.complete(new BlockMap());
+      return;
+    }
+
+    plugin.getFakeBlockSendQueue().enqueue(player, blocks);
+    plugin.getFakeLightEngine().update(player, blocks);
+
+    job.result.complete(blocks);
+
+  }
+
+  /**
+   * @return Whether a shape was being built for the player
+   */
+  public boolean cancel(Player player) {
+
+    var job = jobs.remove(player.getUniqueId());
+    if (job == null) return false;
+
+    job.result.cancel(false);
+    return true;
+
+  }
+
+  public int getPendingJobs() {
+    return jobs.size();
+  }
+
+  public void shutdown() {
+    jobs.values().forEach(job -> job.result.cancel(false));
+    jobs.clear();
+    executor.shutdownNow();
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onPlayerQuit(PlayerQuitEvent event) {
+    cancel(event.getPlayer());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+    cancel(event.getPlayer());
+  }
+
+}
@@ -1,32 +1,37 @@
 package io.github.rozefound.packetbag;
 
 import com.mojang.brigadier.Command;
+import com.mojang.brigadier.arguments.BoolArgumentType;
 import com.mojang.brigadier.arguments.IntegerArgumentType;
 import com.mojang.brigadier.context.CommandContext;
 import com.mojang.brigadier.exceptions.CommandSyntaxException;
 import com.mojang.brigadier.tree.LiteralCommandNode;
-import io.github.rozefound.packetbag.utils.FakeBlock;
+import io.github.rozefound.packetbag.utils.BlockMap;
 import io.github.rozefound.packetbag.utils.Light;
+import io.github.rozefound.packetbag.utils.LightRewrite;
+import io.github.rozefound.packetbag.utils.Metrics;
 import io.github.rozefound.packetbag.utils.Shape;
+import io.github.rozefound.packetbag.utils.ShapeRasterizer;
+import io.github.rozefound.packetbag.utils.Volume;
 import io.papermc.paper.command.brigadier.CommandSourceStack;
 import io.papermc.paper.command.brigadier.Commands;
 import io.papermc.paper.command.brigadier.argument.ArgumentTypes;
 import io.papermc.paper.command.brigadier.argument.resolvers.BlockPositionResolver;
 import io.papermc.paper.math.BlockPosition;
 import net.minecraft.server.level.ServerLevel;
-import org.bukkit.Location;
 import org.bukkit.World;
 import org.bukkit.block.BlockState;
-import org.bukkit.block.data.BlockData;
 import org.bukkit.craftbukkit.CraftWorld;
 import org.bukkit.entity.Player;
 
-import java.util.Map;
+import java.util.function.BinaryOperator;
 
 public class TestCommand {
 
   Main plugin;
 
+  private ViewerGroup sharedShape;
+
   public TestCommand(Main plugin) {
 
     this.plugin = plugin;
@@ -42,7 +47,7 @@ public class TestCommand {
     var spawnBlockCommand = Commands.literal("spawnFakeBlock")
       .then(Commands.argument("pos",  ArgumentTypes.blockPosition())
         .then(Commands.argument("block", ArgumentTypes.blockState())
-          .executes(TestCommand::spawnBlock)));
+          .executes(this::spawnBlock)));
 
     var spawnPlatformCommand = Commands.literal("spawnFakePlatform")
       .then(Commands.argument("position",  ArgumentTypes.blockPosition())
@@ -75,6 +80,28 @@ public class TestCommand {
           .then(Commands.argument("block", ArgumentTypes.blockState())
             .executes(ctx -> spawnShape(ctx, Shape.ShapeEnum.DOME)))));
 
+    var spawnUnionCommand = Commands.literal("spawnFakeUnion")
+      .then(Commands.argument("position", ArgumentTypes.blockPosition())
+        .then(Commands.argument("radius", IntegerArgumentType.integer(1, 50))
+          .then(Commands.argument("otherPosition", ArgumentTypes.blockPosition())
+            .then(Commands.argument("otherRadius", IntegerArgumentType.integer(1, 50))
+              .then(Commands.argument("block", ArgumentTypes.blockState())
+                .executes(ctx -> spawnComposite(ctx, Volume::union)))))));
+
+    var spawnDifferenceCommand = Commands.literal("spawnFakeDifference")
+      .then(Commands.argument("position", ArgumentTypes.blockPosition())
+        .then(Commands.argument("radius", IntegerArgumentType.integer(1, 50))
+          .then(Commands.argument("otherPosition", ArgumentTypes.blockPosition())
+            .then(Commands.argument("otherRadius", IntegerArgumentType.integer(1, 50))
+              .then(Commands.argument("block", ArgumentTypes.blockState())
+                .executes(ctx -> spawnComposite(ctx, Volume::difference)))))));
+
+    var shareSphereCommand = Commands.literal("shareFakeSphere")
+      .then(Commands.argument("position", ArgumentTypes.blockPosition())
+        .then(Commands.argument("radius", IntegerArgumentType.integer(1, 50))
+          .then(Commands.argument("block", ArgumentTypes.blockState())
+            .executes(this::shareSphere))));
+
     var toggleBordersCommand = Commands.literal("toggleBorders")
       .executes(ctx -> {
 
@@ -90,6 +117,66 @@ public class TestCommand {
 
       });
 
+    var asyncBordersCommand = Commands.literal("asyncBorders")
+      .then(Commands.argument("enabled", BoolArgumentType.bool())
+        .executes(ctx -> {
+
+          var enabled = BoolArgumentType.getBool(ctx, "enabled");
+          plugin.getPlayerBoundsManager().setAsyncComputation(enabled);
+
+          ctx.getSource().getSender().sendMessage("Asynchronous border computation is now %s".formatted(enabled ? "enabled" : "disabled"));
+
+          return Command.SINGLE_SUCCESS;
+
+        }));
+
+    var sendBudgetCommand = Commands.literal("sendBudget")
+      .then(Commands.argument("packets", IntegerArgumentType.integer(1))
+        .then(Commands.argument("bytes", IntegerArgumentType.integer(1))
+          .executes(ctx -> {
+
+            var sendQueue = plugin.getFakeBlockSendQueue();
+            sendQueue.setBudget(IntegerArgumentType.getInteger(ctx, "packets"), IntegerArgumentType.getInteger(ctx, "bytes"));
+
+            ctx.getSource().getSender().sendMessage("Fake blocks are now sent at up to %d packets and %d bytes per tick"
+              .formatted(sendQueue.getMaxPacketsPerTick(), sendQueue.getMaxBytesPerTick()));
+
+            return Command.SINGLE_SUCCESS;
+
+          })));
+
+    var skyLightModeCommand = Commands.literal("skyLightMode")
+      .then(Commands.literal("zeroFill")
+        .executes(ctx -> setSkyLightMode(ctx, LightRewrite.Mode.ZERO_FILL)))
+      .then(Commands.literal("emptyMask")
+        .executes(ctx -> setSkyLightMode(ctx, LightRewrite.Mode.EMPTY_MASK)));
+
+    var darknessCommand = Commands.literal("darkness")
+      .then(Commands.argument("enabled", BoolArgumentType.bool())
+        .executes(ctx -> {
+
+          if (ctx.getSource().getExecutor() instanceof Player player) {
+
+            var enabled = BoolArgumentType.getBool(ctx, "enabled");
+            plugin.getPlayerFeatures().set(player.getUniqueId(), PlayerFeatures.Feature.DARKNESS, enabled);
+
+            ctx.getSource().getSender().sendMessage("Darkness is now %s for %s".formatted(enabled ? "enabled" : "disabled", player.getName()));
+
+          }
+
+          return Command.SINGLE_SUCCESS;
+
+        }));
+
+    var statsCommand = Commands.literal("stats")
+      .executes(this::showStats)
+      .then(Commands.literal("reset")
+        .executes(ctx -> {
+          Metrics.reset();
+          ctx.getSource().getSender().sendMessage("Metrics were reset");
+          return Command.SINGLE_SUCCESS;
+        }));
+
     var root = Commands.literal("testplugin")
       .then(getLightValueCommand)
       .then(spawnBlockCommand)
@@ -98,7 +185,15 @@ public class TestCommand {
       .then(spawnSphereCommand)
       .then(spawnCylinderCommand)
       .then(spawnDomeCommand)
-      .then(toggleBordersCommand);
+      .then(spawnUnionCommand)
+      .then(spawnDifferenceCommand)
+      .then(shareSphereCommand)
+      .then(toggleBordersCommand)
+      .then(asyncBordersCommand)
+      .then(skyLightModeCommand)
+      .then(darknessCommand)
+      .then(sendBudgetCommand)
+      .then(statsCommand);
 
     return root.build();
 
@@ -120,7 +215,51 @@ public class TestCommand {
 
   }
 
-  public static int spawnBlock(CommandContext<CommandSourceStack> ctx) throws CommandSyntaxException {
+  public int showStats(CommandContext<CommandSourceStack> ctx) {
+
+    var sender = ctx.getSource().getSender();
+    var snapshot = Metrics.snapshot();
+
+    sender.sendMessage("Sent packets:");
+    snapshot.sent().forEach((type, stats) -> sender.sendMessage(formatPacketStats(type, stats)));
+
+    sender.sendMessage("Received packets:");
+    snapshot.received().forEach((type, stats) -> sender.sendMessage(formatPacketStats(type, stats)));
+
+    sender.sendMessage("Synthetic packets:");
+    snapshot.synthetic().forEach((type, count) -> sender.sendMessage("  %s: %d".formatted(type, count)));
+
+    sender.sendMessage("Timings:");
+    snapshot.timers().forEach((name, timer) -> sender.sendMessage("  %s: %d runs, mean %.1f µs, p50 %s, p99 %s"
+      .formatted(name, timer.count(), timer.mean() / 1000, formatNanos(timer.percentile(0.5)), formatNanos(timer.percentile(0.99)))));
+
+    sender.sendMessage("Gauges:");
+    snapshot.gauges().forEach((name, value) -> sender.sendMessage("  %s: %d".formatted(name, value)));
+
+    return Command.SINGLE_SUCCESS;
+
+  }
+
+  private static String formatPacketStats(String type, Metrics.PacketSnapshot stats) {
+    return "  %s: %d seen, %d re-encoded, %d bytes, p50 %s, p99 %s".formatted(type, stats.count(), stats.reEncoded(), stats.bytes(),
+      formatNanos(stats.latency().percentile(0.5)), formatNanos(stats.latency().percentile(0.99)));
+  }
+
+  private static String formatNanos(long nanos) {
+    return nanos < 1_000_000 ? "<%.1f µs".formatted(nanos / 1000.0) : "<%.1f ms".formatted(nanos / 1_000_000.0);
+  }
+
+  public int setSkyLightMode(CommandContext<CommandSourceStack> ctx, LightRewrite.Mode mode) {
+
+    plugin.getPacketEventListener().setSkyLightMode(mode);
+
+    ctx.getSource().getSender().sendMessage("Sky light is now suppressed using %s".formatted(mode.name()));
+
+    return Command.SINGLE_SUCCESS;
+
+  }
+
+  public int spawnBlock(CommandContext<CommandSourceStack> ctx) throws CommandSyntaxException {
 
     final BlockPositionResolver resolver = ctx.getArgument("pos", BlockPositionResolver.class);
     final BlockPosition blockPosition = resolver.resolve(ctx.getSource());
@@ -129,7 +268,15 @@ public class TestCommand {
 
     var executor = ctx.getSource().getExecutor();
 
-    FakeBlock.sendFakeBlock((Player)executor, blockPosition.toLocation(executor.getWorld()), blockState.getBlockData());
+    var location = blockPosition.toLocation(executor.getWorld());
+
+    var blocks = new BlockMap();
+    blocks.put(location.getBlockX(), location.getBlockY(), location.getBlockZ(), blockState.getBlockData());
+
+    if (!plugin.getFakeBlockOverlay().put((Player)executor, blocks)) return 0;
+
+    plugin.getFakeBlockSendQueue().enqueue((Player)executor, blocks);
+    plugin.getFakeLightEngine().update((Player)executor, blocks);
 
     return Command.SINGLE_SUCCESS;
 
@@ -154,24 +301,70 @@ public class TestCommand {
 
     var executor = ctx.getSource().getExecutor();
     var location = blockPosition.toLocation(executor.getWorld());
+    var blockData = blockState.getBlockData();
+
+    int shapeSize = size, shapeRadius = radius;
+
+    // Rasterized on a virtual thread; a newer shape command from the same player cancels this one
+    plugin.getShapeSpawner().spawn((Player)executor, () -> switch (shapeEnum) {
+      case PLATFORM -> Shape.drawPlatform(location, shapeSize, blockData);
+      case CUBE -> Shape.drawCube(location, shapeSize, blockData);
+      case SPHERE -> Shape.drawSphere(location, shapeRadius, blockData);
+      case CYLINDER -> Shape.drawCylinder(location, shapeSize, shapeRadius, blockData);
+      case DOME -> Shape.drawDome(location, shapeRadius, blockData);
+    });
 
-    Map<Location, BlockData> blocks;
+    return Command.SINGLE_SUCCESS;
+
+  }
+
+  /**
+   * Shows a sphere to every player in the executor's world through a single {@link ViewerGroup},
+   * replacing the previously shared one.
+   */
+  public int shareSphere(CommandContext<CommandSourceStack> ctx) throws CommandSyntaxException {
+
+    final BlockPosition blockPosition = ctx.getArgument("position", BlockPositionResolver.class).resolve(ctx.getSource());
+
+    var radius = ctx.getArgument("radius", Integer.class);
+    var blockState = ctx.getArgument("block", BlockState.class);
+
+    var world = ctx.getSource().getLocation().getWorld();
+    var blocks = Shape.drawSphere(blockPosition.toLocation(world), radius, blockState.getBlockData());
+
+    if (sharedShape != null) sharedShape.close();
+    sharedShape = new ViewerGroup(plugin, world, blocks);
 
-    switch (shapeEnum) {
-      case PLATFORM -> blocks = Shape.drawPlatform(location, size, blockState.getBlockData());
-      case CUBE -> blocks = Shape.drawCube(location, size, blockState.getBlockData());
-      case SPHERE -> blocks = Shape.drawSphere(location, radius, blockState.getBlockData());
-      case CYLINDER -> blocks = Shape.drawCylinder(location, size, radius, blockState.getBlockData());
-      case DOME -> blocks = Shape.drawDome(location, radius, blockState.getBlockData());
-      case null, default -> throw new RuntimeException("Get the fuck out");
-    }
+    for (var player : world.getPlayers()) sharedShape.addViewer(player);
 
-    FakeBlock.sendFakeBlocks((Player)executor, blocks);
+    ctx.getSource().getSender().sendMessage("Sharing %d blocks with %d players".formatted(blocks.size(), sharedShape.getViewerCount()));
 
     return Command.SINGLE_SUCCESS;
 
   }
 
+  /**
+   * Draws the surface of two spheres combined with the given operation, e.g. {@link Volume#union}.
+   */
+  public int spawnComposite(CommandContext<CommandSourceStack> ctx, BinaryOperator<Volume> operation) throws CommandSyntaxException {
 
+    final BlockPosition position = ctx.getArgument("position", BlockPositionResolver.class).resolve(ctx.getSource());
+    final BlockPosition otherPosition = ctx.getArgument("otherPosition", BlockPositionResolver.class).resolve(ctx.getSource());
+
+    var radius = ctx.getArgument("radius", Integer.class);
+    var otherRadius = ctx.getArgument("otherRadius", Integer.class);
+    var blockState = ctx.getArgument("block", BlockState.class);
+
+    var sphere = Volume.ball(position.blockX(), position.blockY(), position.blockZ(), radius * radius);
+    var otherSphere = Volume.ball(otherPosition.blockX(), otherPosition.blockY(), otherPosition.blockZ(), otherRadius * otherRadius);
+
+    var player = (Player) ctx.getSource().getExecutor();
+    var blockData = blockState.getBlockData();
+
+    plugin.getShapeSpawner().spawn(player, () -> ShapeRasterizer.rasterize(operation.apply(sphere, otherSphere), ShapeRasterizer.Mode.SURFACE, blockData));
+
+    return Command.SINGLE_SUCCESS;
+
+  }
 
 }
@@ -0,0 +1,280 @@
+package io.github.rozefound.packetbag;
+
+import com.github.retrooper.packetevents.PacketEvents;
+import com.github.retrooper.packetevents.protocol.packettype.PacketType;
+import com.github.retrooper.packetevents.protocol.player.ClientVersion;
+import io.github.rozefound.packetbag.utils.BlockKey;
+import io.github.rozefound.packetbag.utils.BlockMap;
+import io.github.rozefound.packetbag.utils.BlockSet;
+import io.github.rozefound.packetbag.utils.Chunk;
+import io.github.rozefound.packetbag.utils.FakeBlock;
+import io.github.rozefound.packetbag.utils.Metrics;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.LongStream;
+
+/**
+ * A set of fake blocks in one world shown to several players at once, such as a structure
+ * watched by a crowd of spectators. Only players in that world can view the group, and viewers
+ * leave it when they change worlds.
+ * <p>
+ * The MultiBlockChange packets are grouped, resolved and encoded once, whenever the blocks are
+ * set, and every viewer is written retained duplicates of the same buffers. Adding or removing
+ * a viewer never encodes anything. Buffers are encoded in the server's own protocol version;
+ * viewers whose client reports another one are sent the blocks through the
+ * {@link FakeBlockSendQueue} instead, which encodes for them.
+ * <p>
+ * Shared buffers only go out for sections the viewer can receive right now, and only up to the
+ * send queue's per-tick budget. The remaining sections are handed to the queue, which parks
+ * those the client has not loaded and spreads the rest over the next ticks.
+ * <p>
+ * Viewers also get the blocks recorded in their {@link FakeBlockOverlay}, so chunk resends keep
+ * showing them. The group owns its buffers and its listener registration until it is
+ * {@link #close() closed}.
+ */
+public final class ViewerGroup implements Listener, AutoCloseable {
+
+  private final Main plugin;
+  private final World world;
+  private final ClientVersion nativeVersion;
+
+  private final Set<UUID> viewers = new LinkedHashSet<>();
+
+  private BlockMap blocks = new BlockMap();
+  private final List<ByteBuf> packets = new ArrayList<>();
+  private long[] sectionKeys = new long[0];
+
+  private boolean closed;
+
+  public ViewerGroup(Main plugin, World world) {
+    this.plugin = plugin;
+    this.world = world;
+    this.nativeVersion = PacketEvents.getAPI().getServerManager().getVersion().toClientVersion();
+    plugin.getServer().getPluginManager().registerEvents(this, plugin);
+  }
+
+  public ViewerGroup(Main plugin, World world, BlockMap blocks) {
+    this(plugin, world);
+    setBlocks(blocks);
+  }
+
+  public World getWorld() {
+    return world;
+  }
+
+  /**
+   * Replaces the group's blocks, encoding them once and sending them to every viewer.
+   * Positions that are no longer part of the group show the real world again, unless
+   * something else has drawn over them since.
+   */
+  public synchronized void setBlocks(BlockMap newBlocks) {
+
+    ensureOpen();
+
+    var previous = blocks;
+
+    blocks = new BlockMap(newBlocks.size());
+    blocks.putAll(newBlocks);
+
+    encode();
+
+    var dropped = new BlockMap();
+    previous.forEachState((key, state) -> {
+      if (!blocks.containsKey(key)) dropped.put(key, previous.getPaletteEntry(state));
+    });
+
+    for (var player : onlineViewers()) {
+      if (!dropped.isEmpty()) plugin.getPlayerBoundsManager().restoreBlocks(player, dropped);
+      show(player);
+    }
+
+  }
+
+  /**
+   * @return Whether the player was added, {@code false} if they were already viewing the group
+   *         or are in another world
+   */
+  public synchronized boolean addViewer(Player player) {
+
+    ensureOpen();
+
+    if (player.getWorld() != world || !viewers.add(player.getUniqueId())) return false;
+
+    show(player);
+    return true;
+
+  }
+
+  /**
+   * Stops showing the group to the player, who sees the real world there again.
+   * @return Whether the player was viewing the group
+   */
+  public synchronized boolean removeViewer(Player player) {
+
+    if (!viewers.remove(player.getUniqueId())) return false;
+
+    if (player.isOnline()) hide(player);
+    return true;
+
+  }
+
+  public synchronized boolean isViewer(Player player) {
+    return viewers.contains(player.getUniqueId());
+  }
+
+  public synchronized int getViewerCount() {
+    return viewers.size();
+  }
+
+  /**
+   * Removes every viewer and releases the encoded packets.
+   */
+  @Override
+  public synchronized void close() {
+
+    if (closed) return;
+
+    for (var player : onlineViewers()) hide(player);
+
+    viewers.clear();
+    release();
+    closed = true;
+
+    HandlerList.unregisterAll(this);
+
+  }
+
+  private void show(Player player) {
+
+    if (blocks.isEmpty()) return;
+
+    if (!plugin.getFakeBlockOverlay().put(player, blocks)) return;
+
+    var queue = plugin.getFakeBlockSendQueue();
+
+    if (PacketEvents.getAPI().getPlayerManager().getClientVersion(player) != nativeVersion) {
+      queue.enqueue(player, blocks);
+      return;
+    }
+
+    var protocolManager = PacketEvents.getAPI().getProtocolManager();
+    var channel = PacketEvents.getAPI().getPlayerManager().getChannel(player);
+
+    // The listener would have marked these for darkening, had it seen them
+    var coalescer = plugin.getLightUpdateCoalescer();
+    boolean darkness = plugin.getPlayerFeatures().has(player, PlayerFeatures.Feature.DARKNESS);
+
+    // Section keys rather than block keys, the set only cares about them being longs
+    var deferred = new BlockSet();
+    int sent = 0;
+    long bytes = 0;
+
+    for (int i = 0; i < packets.size(); i++) {
+
+      var packet = packets.get(i);
+      long sectionKey = sectionKeys[i];
+      int size = packet.readableBytes();
+
+      boolean withinBudget = sent == 0 || sent < queue.getMaxPacketsPerTick() && bytes + size <= queue.getMaxBytesPerTick();
+
+      if (!withinBudget || !queue.canReceive(player, chunkKeyOf(sectionKey))) {
+        deferred.add(sectionKey);
+        continue;
+      }
+
+      // Written silently: listeners may rewrite a buffer in place, and these ones are shared
+      protocolManager.sendPacketSilently(channel, packet.retainedDuplicate());
+      if (darkness) coalescer.markSection(player, sectionKey);
+
+      sent++;
+      bytes += size;
+
+    }
+
+    Metrics.recordSynthetic(PacketType.Play.Server.MULTI_BLOCK_CHANGE, sent);
+
+    if (deferred.isEmpty()) return;
+
+    var rest = new BlockMap();
+    blocks.forEachState((key, state) -> {
+      int x = BlockKey.getX(key), y = BlockKey.getY(key), z = BlockKey.getZ(key);
+      if (deferred.contains(Chunk.getSectionKey(x >> 4, y >> 4, z >> 4))) rest.put(key, blocks.getPaletteEntry(state));
+    });
+
+    queue.enqueue(player, rest);
+
+  }
+
+  private void hide(Player player) {
+    if (!blocks.isEmpty()) plugin.getPlayerBoundsManager().restoreBlocks(player, blocks);
+  }
+
+  private void encode() {
+
+    release();
+
+    int packetId = PacketType.Play.Server.MULTI_BLOCK_CHANGE.getId(nativeVersion);
+    var keys = LongStream.builder();
+
+    FakeBlock.encodeSections(blocks, FakeBlock::getGlobalId, (sectionKey, encoded) -> {
+
+      var buffer = Unpooled.directBuffer(FakeBlock.estimateMultiBlockChangeBytes(encoded));
+      FakeBlock.writeMultiBlockChange(buffer, packetId, sectionKey, encoded);
+
+      packets.add(buffer);
+      keys.add(sectionKey);
+
+    });
+
+    sectionKeys = keys.build().toArray();
+
+  }
+
+  private void release() {
+    packets.forEach(ByteBuf::release);
+    packets.clear();
+    sectionKeys = new long[0];
+  }
+
+  private List<Player> onlineViewers() {
+
+    var players = new ArrayList<Player>(viewers.size());
+
+    for (var iterator = viewers.iterator(); iterator.hasNext(); ) {
+      var player = plugin.getServer().getPlayer(iterator.next());
+      if (player != null && player.getWorld() == world) players.add(player);
+      else iterator.remove();
+    }
+
+    return players;
+
+  }
+
+  private static long chunkKeyOf(long sectionKey) {
+    return Chunk.getChunkKey(Chunk.getSectionKeyX(sectionKey), Chunk.getSectionKeyZ(sectionKey));
+  }
+
+  private void ensureOpen() {
+    if (closed) throw new IllegalStateException("ViewerGroup is closed");
+  }
+
+  // The overlay drops the old world's blocks on its own, there is nothing left to restore
+  @EventHandler(priority = EventPriority.MONITOR)
+  public synchronized void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+    viewers.remove(event.getPlayer().getUniqueId());
+  }
+
+}
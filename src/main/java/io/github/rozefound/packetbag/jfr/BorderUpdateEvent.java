@@ -0,0 +1,33 @@
+package io.github.rozefound.packetbag.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("io.github.rozefound.packetbag.BorderUpdate")
+@Label("Border Update")
+@Category({ "Packet Bag", "Borders" })
+@Description("Border blocks computed or applied for a player")
+@StackTrace(false)
+public final class BorderUpdateEvent extends Event {
+
+  @Label("Player")
+  public String player;
+
+  @Label("Operation")
+  @Description("update for a requested move, apply for a finished delta")
+  public String operation;
+
+  @Label("Asynchronous")
+  public boolean async;
+
+  @Label("Shown Blocks")
+  public int shownBlocks;
+
+  @Label("Hidden Blocks")
+  public int hiddenBlocks;
+
+}
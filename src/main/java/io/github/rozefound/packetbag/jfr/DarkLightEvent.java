@@ -0,0 +1,35 @@
+package io.github.rozefound.packetbag.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("io.github.rozefound.packetbag.DarkLight")
+@Label("Dark Light Send")
+@Category({ "Packet Bag", "Light" })
+@Description("A light update darkening sections of one chunk")
+@StackTrace(false)
+public final class DarkLightEvent extends Event {
+
+  @Label("Player")
+  public String player;
+
+  @Label("Chunk X")
+  public int chunkX;
+
+  @Label("Chunk Z")
+  public int chunkZ;
+
+  @Label("Sections")
+  public int sectionCount;
+
+  @Label("Sky Light")
+  public boolean skyLight;
+
+  @Label("Block Light")
+  public boolean blockLight;
+
+}
@@ -0,0 +1,31 @@
+package io.github.rozefound.packetbag.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("io.github.rozefound.packetbag.FakeBlockSend")
+@Label("Fake Block Send")
+@Category({ "Packet Bag", "Packets" })
+@Description("Fake blocks encoded and sent to a player as MultiBlockChange packets")
+@StackTrace(false)
+public final class FakeBlockSendEvent extends Event {
+
+  @Label("Player")
+  public String player;
+
+  @Label("Blocks")
+  public int blockCount;
+
+  @Label("Sections")
+  public int sectionCount;
+
+  @Label("Estimated Size")
+  @DataAmount
+  public long bytes;
+
+}
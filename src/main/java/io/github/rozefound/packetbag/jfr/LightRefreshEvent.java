@@ -0,0 +1,27 @@
+package io.github.rozefound.packetbag.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("io.github.rozefound.packetbag.LightRefresh")
+@Label("Light Refresh")
+@Category({ "Packet Bag", "Light" })
+@Description("One run of the periodic light refresh task")
+@StackTrace(false)
+public final class LightRefreshEvent extends Event {
+
+  @Label("Players")
+  public int playerCount;
+
+  @Label("Dirty Chunks")
+  public int dirtyChunks;
+
+  @Label("Refreshed Chunks")
+  @Description("Dirty chunks still loaded by the client and handed on to be darkened")
+  public int refreshedChunks;
+
+}
@@ -0,0 +1,44 @@
+package io.github.rozefound.packetbag.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("io.github.rozefound.packetbag.LightRewrite")
+@Label("Light Rewrite")
+@Category({ "Packet Bag", "Packets" })
+@Description("Sky light suppression and fake light merging on an outgoing light or chunk packet")
+@StackTrace(false)
+public final class LightRewriteEvent extends Event {
+
+  @Label("Player")
+  public String player;
+
+  @Label("Packet")
+  public String packetType;
+
+  @Label("Chunk X")
+  public int chunkX;
+
+  @Label("Chunk Z")
+  public int chunkZ;
+
+  @Label("In Place")
+  @Description("Whether the buffer was patched directly instead of being decoded and re-encoded")
+  public boolean inPlace;
+
+  @Label("Fake Blocks")
+  public boolean fakeBlocks;
+
+  @Label("Fake Light")
+  public boolean fakeLight;
+
+  @Label("Payload Size")
+  @DataAmount
+  public int bytes;
+
+}
@@ -3,55 +3,91 @@ package io.github.rozefound.packetbag.listeners;
 import com.github.retrooper.packetevents.event.PacketListener;
 import com.github.retrooper.packetevents.event.PacketReceiveEvent;
 import com.github.retrooper.packetevents.event.PacketSendEvent;
+import com.github.retrooper.packetevents.manager.server.ServerVersion;
 import com.github.retrooper.packetevents.protocol.packettype.PacketType;
-import com.github.retrooper.packetevents.protocol.world.chunk.LightData;
 import com.github.retrooper.packetevents.wrapper.configuration.client.WrapperConfigClientSettings;
 import com.github.retrooper.packetevents.wrapper.play.client.WrapperPlayClientSettings;
 import com.github.retrooper.packetevents.wrapper.play.server.WrapperPlayServerBlockChange;
 import com.github.retrooper.packetevents.wrapper.play.server.WrapperPlayServerChunkData;
 import com.github.retrooper.packetevents.wrapper.play.server.WrapperPlayServerMultiBlockChange;
 import com.github.retrooper.packetevents.wrapper.play.server.WrapperPlayServerUpdateLight;
+import io.github.retrooper.packetevents.util.SpigotConversionUtil;
 import io.github.rozefound.packetbag.Main;
+import io.github.rozefound.packetbag.PlayerFeatures;
+import io.github.rozefound.packetbag.jfr.LightRewriteEvent;
 import io.github.rozefound.packetbag.utils.Chunk;
-import io.github.rozefound.packetbag.utils.LightPacket;
-import org.bukkit.Location;
+import io.github.rozefound.packetbag.utils.FakeBlock;
+import io.github.rozefound.packetbag.utils.LightRewrite;
+import io.github.rozefound.packetbag.utils.Metrics;
+import io.netty.buffer.ByteBuf;
 import org.bukkit.entity.Player;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-
 public class PacketEventListener  implements PacketListener {
 
   private final Main plugin;
 
+  private volatile LightRewrite.Mode skyLightMode = LightRewrite.Mode.EMPTY_MASK;
+
   public PacketEventListener(Main plugin) {
 
     this.plugin = plugin;
 
   }
 
+  public LightRewrite.Mode getSkyLightMode() {
+    return skyLightMode;
+  }
+
+  public void setSkyLightMode(LightRewrite.Mode skyLightMode) {
+    this.skyLightMode = skyLightMode;
+  }
+
   @Override
   public void onPacketSend(@NotNull PacketSendEvent event) {
 
-    switch (event.getPacketType()) {
-      case PacketType.Play.Server.BLOCK_CHANGE -> onBlockChangeEvent(event);
-      case PacketType.Play.Server.UPDATE_LIGHT, PacketType.Play.Server.CHUNK_DATA -> onLightUpdateEvent(event);
-      case PacketType.Play.Server.MULTI_BLOCK_CHANGE -> onMultiBlockChangeEvent(event);
+    var type = event.getPacketType();
+
+    boolean interesting = type == PacketType.Play.Server.BLOCK_CHANGE || type == PacketType.Play.Server.UPDATE_LIGHT
+      || type == PacketType.Play.Server.CHUNK_DATA || type == PacketType.Play.Server.MULTI_BLOCK_CHANGE;
+
+    // Players without any feature enabled are let through before anything is decoded, or even measured
+    int features = interesting ? featuresOf(event) : 0;
+    if (features == 0) return;
+
+    long start = System.nanoTime();
+    int bytes = ((ByteBuf) event.getByteBuf()).readableBytes();
+
+    switch (type) {
+      case PacketType.Play.Server.BLOCK_CHANGE -> onBlockChangeEvent(event, features);
+      case PacketType.Play.Server.UPDATE_LIGHT -> onLightUpdateEvent(event, features);
+      case PacketType.Play.Server.CHUNK_DATA -> onChunkDataEvent(event, features);
+      case PacketType.Play.Server.MULTI_BLOCK_CHANGE -> onMultiBlockChangeEvent(event, features);
       default -> {}
     }
 
+    Metrics.recordPacket(Metrics.Direction.SEND, type, bytes, System.nanoTime() - start, event.needsReEncode());
+
   }
 
   @Override
   public void onPacketReceive(@NotNull PacketReceiveEvent event) {
 
-    switch (event.getPacketType()) {
-      case PacketType.Configuration.Client.CLIENT_SETTINGS, PacketType.Play.Client.CLIENT_SETTINGS -> onClientInfoEvent(event);
-      default -> {}
-    }
+    var type = event.getPacketType();
+    if (type != PacketType.Configuration.Client.CLIENT_SETTINGS && type != PacketType.Play.Client.CLIENT_SETTINGS) return;
+
+    long start = System.nanoTime();
+    int bytes = ((ByteBuf) event.getByteBuf()).readableBytes();
+
+    onClientInfoEvent(event);
+
+    Metrics.recordPacket(Metrics.Direction.RECEIVE, type, bytes, System.nanoTime() - start, event.needsReEncode());
+
+  }
 
+  private int featuresOf(PacketSendEvent event) {
+    var uuid = event.getUser().getUUID();
+    return uuid == null || event.getPlayer() == null ? 0 : plugin.getPlayerFeatures().get(uuid);
   }
 
   public void onClientInfoEvent(@NotNull PacketReceiveEvent event) {
@@ -70,58 +106,209 @@ public class PacketEventListener  implements PacketListener {
 
   }
 
-  public void onLightUpdateEvent(@NotNull PacketSendEvent event) {
+  public void onLightUpdateEvent(@NotNull PacketSendEvent event, int features) {
+
+    boolean darkness = PlayerFeatures.Feature.DARKNESS.isIn(features);
+    if (!darkness && !PlayerFeatures.Feature.FAKE_LIGHT.isIn(features)) return;
+
+    var rewrite = new LightRewriteEvent();
+    rewrite.begin();
+
+    var mode = skyLightMode;
+    var player = (Player) event.getPlayer();
+    var buffer = (ByteBuf) event.getByteBuf();
+    int bytes = buffer.readableBytes();
+
+    long chunkKey = LightRewrite.readUpdateLightChunkKey(buffer);
+    int chunkX = Chunk.getChunkKeyX(chunkKey), chunkZ = Chunk.getChunkKeyZ(chunkKey);
+
+    boolean hasFakeLight = PlayerFeatures.Feature.FAKE_LIGHT.isIn(features)
+      && plugin.getFakeLightEngine().hasChunk(player.getUniqueId(), chunkX, chunkZ);
+
+    if (!darkness && !hasFakeLight) return;
+
+    // Patching the buffer directly avoids decoding and re-encoding the packet altogether
+    boolean inPlace = darkness && mode == LightRewrite.Mode.EMPTY_MASK && !hasFakeLight
+      && LightRewrite.suppressUpdateLightInPlace(buffer, event.getServerVersion());
+
+    if (!inPlace) {
+
+      var lightData = new WrapperPlayServerUpdateLight(event).getLightData();
+
+      if (darkness) LightRewrite.suppressSkyLight(lightData, mode);
+
+      // Real light updates would otherwise overwrite the fake light the client was sent
+      if (hasFakeLight) {
+        int minSection = player.getWorld().getMinHeight() >> 4;
+        plugin.getFakeLightEngine().applyToLightData(player.getUniqueId(), chunkX, chunkZ, lightData, minSection, false);
+      }
+
+      event.markForReEncode(true);
+
+    }
+
+    commitRewrite(rewrite, player, "UPDATE_LIGHT", chunkX, chunkZ, inPlace, false, hasFakeLight, bytes);
+
+  }
+
+  public void onChunkDataEvent(@NotNull PacketSendEvent event, int features) {
+
+    var rewrite = new LightRewriteEvent();
+    rewrite.begin();
+
+    var mode = skyLightMode;
+    var player = (Player) event.getPlayer();
+    var buffer = (ByteBuf) event.getByteBuf();
+    int bytes = buffer.readableBytes();
+
+    int chunkX = buffer.getInt(buffer.readerIndex());
+    int chunkZ = buffer.getInt(buffer.readerIndex() + 4);
+
+    boolean darkness = PlayerFeatures.Feature.DARKNESS.isIn(features);
+
+    boolean hasFakeBlocks = PlayerFeatures.Feature.FAKE_BLOCKS.isIn(features)
+      && plugin.getFakeBlockOverlay().hasChunk(player.getUniqueId(), chunkX, chunkZ);
+    boolean hasFakeLight = PlayerFeatures.Feature.FAKE_LIGHT.isIn(features)
+      && plugin.getFakeLightEngine().hasChunk(player.getUniqueId(), chunkX, chunkZ);
+
+    if (!darkness && !hasFakeBlocks && !hasFakeLight) return;
+
+    // Chunks without anything fake only need their light patched, which can be done in place
+    boolean inPlace = darkness && mode == LightRewrite.Mode.EMPTY_MASK && !hasFakeBlocks && !hasFakeLight
+      && LightRewrite.suppressChunkDataInPlace(buffer, event.getServerVersion());
 
-    LightData lightData = null;
+    if (!inPlace) {
 
-    if (event.getPacketType() == PacketType.Play.Server.UPDATE_LIGHT)
-      lightData = new WrapperPlayServerUpdateLight(event).getLightData();
-    else if (event.getPacketType() == PacketType.Play.Server.CHUNK_DATA)
-      lightData = new WrapperPlayServerChunkData(event).getLightData();
+      // A single wrapper has to carry every change, since only the last one used is re-encoded
+      var packet = new WrapperPlayServerChunkData(event);
 
-    if (lightData == null) return;
+      var column = packet.getColumn();
+      int minSection = player.getWorld().getMinHeight() >> 4;
 
-    var skyLightArray = lightData.getSkyLightArray();
+      if (hasFakeBlocks)
+        plugin.getFakeBlockOverlay().applyToColumn(player.getUniqueId(), column.getX(), column.getZ(), column.getChunks(), minSection);
 
-    for (var sector : skyLightArray)
-      Arrays.fill(sector, (byte) 0);
+      if (hasFakeLight)
+        plugin.getFakeLightEngine().applyToLightData(player.getUniqueId(), column.getX(), column.getZ(), packet.getLightData(), minSection, true);
 
-    lightData.setSkyLightArray(skyLightArray);
+      if (darkness) LightRewrite.suppressSkyLight(packet.getLightData(), mode);
 
-    event.markForReEncode(true);
+      event.markForReEncode(true);
+
+    }
+
+    commitRewrite(rewrite, player, "CHUNK_DATA", chunkX, chunkZ, inPlace, hasFakeBlocks, hasFakeLight, bytes);
 
   }
 
-  public void onBlockChangeEvent(PacketSendEvent event) {
+  private static void commitRewrite(LightRewriteEvent rewrite, Player player, String packetType, int chunkX, int chunkZ,
+                                    boolean inPlace, boolean fakeBlocks, boolean fakeLight, int bytes) {
+
+    rewrite.end();
+    if (!rewrite.shouldCommit()) return;
+
+    rewrite.player = player == null ? null : player.getName();
+    rewrite.packetType = packetType;
+    rewrite.chunkX = chunkX;
+    rewrite.chunkZ = chunkZ;
+    rewrite.inPlace = inPlace;
+    rewrite.fakeBlocks = fakeBlocks;
+    rewrite.fakeLight = fakeLight;
+    rewrite.bytes = bytes;
+    rewrite.commit();
+
+  }
+
+  public void onBlockChangeEvent(PacketSendEvent event, int features) {
+
+    var player = (Player) event.getPlayer();
+    var buffer = (ByteBuf) event.getByteBuf();
+
+    // Positions are packed into a single long since 1.14; older layouts go through the wrapper
+    int x, y, z;
+
+    if (event.getServerVersion().isNewerThanOrEquals(ServerVersion.V_1_14)) {
+      long position = buffer.getLong(buffer.readerIndex());
+      x = (int) (position >> 38);
+      y = (int) (position << 52 >> 52);
+      z = (int) (position << 26 >> 38);
+    }
+    else {
+      var blockPosition = new WrapperPlayServerBlockChange(event).getBlockPosition();
+      x = blockPosition.getX();
+      y = blockPosition.getY();
+      z = blockPosition.getZ();
+    }
 
-    var packet = new WrapperPlayServerBlockChange(event);
+    // Keep fake blocks in place when the server updates the real block underneath them
+    if (PlayerFeatures.Feature.FAKE_BLOCKS.isIn(features)) {
 
-    var player = (Player)event.getPlayer();
-    if (player == null) return;
+      var fakeBlock = plugin.getFakeBlockOverlay().get(player.getUniqueId(), x, y, z);
 
-    var blockPosition = packet.getBlockPosition();
-    var location = new Location(player.getWorld(), blockPosition.getX(), blockPosition.getY(), blockPosition.getZ());
-    LightPacket.sendDarkLight(player, location, true, false);
+      if (fakeBlock != null) {
+        new WrapperPlayServerBlockChange(event).setBlockState(SpigotConversionUtil.fromBukkitBlockData(fakeBlock));
+        event.markForReEncode(true);
+      }
+
+    }
+
+    if (PlayerFeatures.Feature.DARKNESS.isIn(features))
+      plugin.getLightUpdateCoalescer().markBlock(player, x, y, z);
 
   }
 
-  public void onMultiBlockChangeEvent(PacketSendEvent event) {
+  public void onMultiBlockChangeEvent(PacketSendEvent event, int features) {
+
+    var player = (Player) event.getPlayer();
+    var buffer = (ByteBuf) event.getByteBuf();
+
+    // The section position leads the packet as a single long since 1.16.2
+    int sectionX, sectionY, sectionZ;
+
+    // Decoded at most once, as the wrapper parses every block along with the position
+    WrapperPlayServerMultiBlockChange packet = null;
+
+    if (event.getServerVersion().isNewerThanOrEquals(ServerVersion.V_1_16_2)) {
+      long position = buffer.getLong(buffer.readerIndex());
+      sectionX = (int) (position >> 42);
+      sectionY = (int) (position << 44 >> 44);
+      sectionZ = (int) (position << 22 >> 42);
+    }
+    else {
+      packet = new WrapperPlayServerMultiBlockChange(event);
+      var chunkPosition = packet.getChunkPosition();
+      sectionX = chunkPosition.getX();
+      sectionY = chunkPosition.getY();
+      sectionZ = chunkPosition.getZ();
+    }
+
+    var overlay = plugin.getFakeBlockOverlay();
+
+    // Only sections with fake blocks in their chunk are decoded block by block
+    if (PlayerFeatures.Feature.FAKE_BLOCKS.isIn(features) && overlay.hasChunk(player.getUniqueId(), sectionX, sectionZ)) {
+
+      if (packet == null) packet = new WrapperPlayServerMultiBlockChange(event);
 
-    var packet = new WrapperPlayServerMultiBlockChange(event);
+      for (var encodedBlock : packet.getBlocks()) {
 
-    var player = (Player)event.getPlayer();
-    if (player == null) return;
+        var fakeBlock = overlay.get(player.getUniqueId(), encodedBlock.getX(), encodedBlock.getY(), encodedBlock.getZ());
+        if (fakeBlock == null) continue;
 
-    List<Location> locations = new ArrayList<>();
+        // Packets that already show the fake block are let through as they were encoded
+        int globalId = FakeBlock.getGlobalId(fakeBlock);
 
-    for (var encodedBlock : packet.getBlocks()) {
+        if (encodedBlock.getBlockId() != globalId) {
+          encodedBlock.setBlockId(globalId);
+          event.markForReEncode(true);
+        }
 
-      var location = new Location(player.getWorld(), encodedBlock.getX(), encodedBlock.getY(), encodedBlock.getZ());
-      locations.add(location);
+      }
 
     }
 
-    LightPacket.sendDarkLight(player, Chunk.getChunkSectors(locations), true, false);
+    // A MultiBlockChange only ever covers a single section
+    if (PlayerFeatures.Feature.DARKNESS.isIn(features))
+      plugin.getLightUpdateCoalescer().markSection(player, sectionX, sectionY, sectionZ);
 
   }
 
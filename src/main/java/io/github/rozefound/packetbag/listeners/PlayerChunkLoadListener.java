@@ -1,48 +1,78 @@
 package io.github.rozefound.packetbag.listeners;
 
+import io.github.rozefound.packetbag.utils.Chunk;
+import io.github.rozefound.packetbag.utils.ChunkKeySet;
 import io.papermc.paper.event.packet.PlayerChunkLoadEvent;
 import io.papermc.paper.event.packet.PlayerChunkUnloadEvent;
-import org.bukkit.Chunk;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
-
-import java.util.*;
-
+import org.bukkit.event.player.PlayerQuitEvent;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongConsumer;
+
+/**
+ * Tracks which chunks each client currently has loaded, as packed chunk keys.
+ * <p>
+ * Updated by events on the main thread, safe to query from any thread, including Netty's.
+ */
 public class PlayerChunkLoadListener implements Listener {
 
-  Map<UUID, Set<Chunk>> loadedChunks = new HashMap<>();
+  private final Map<UUID, ChunkKeySet> loadedChunks = new ConcurrentHashMap<>();
 
   @EventHandler(priority = EventPriority.LOW)
   public void onPlayerChunkLoad(PlayerChunkLoadEvent event) {
 
-    var player = event.getPlayer();
-
-    if (!loadedChunks.containsKey(player.getUniqueId()))
-      loadedChunks.put(player.getUniqueId(), new HashSet<>());
+    var chunk = event.getChunk();
 
-    loadedChunks.get(player.getUniqueId()).add(event.getChunk());
+    loadedChunks.computeIfAbsent(event.getPlayer().getUniqueId(), uuid -> new ChunkKeySet())
+      .add(Chunk.getChunkKey(chunk.getX(), chunk.getZ()));
 
   }
 
   @EventHandler(priority = EventPriority.LOW)
   public void onPlayerChunkUnload(PlayerChunkUnloadEvent event) {
 
-    var player = event.getPlayer();
+    var chunks = loadedChunks.get(event.getPlayer().getUniqueId());
+    var chunk = event.getChunk();
 
-    if (loadedChunks.containsKey(player.getUniqueId()))
-      loadedChunks.get(player.getUniqueId()).remove(event.getChunk());
+    if (chunks != null)
+      chunks.remove(Chunk.getChunkKey(chunk.getX(), chunk.getZ()));
 
   }
 
-  public Set<Chunk> getPlayerLoadedChunks(Player player) {
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onPlayerQuit(PlayerQuitEvent event) {
+    loadedChunks.remove(event.getPlayer().getUniqueId());
+  }
 
-    if (loadedChunks.containsKey(player.getUniqueId()))
-      return loadedChunks.get(player.getUniqueId());
+  public boolean isChunkLoaded(UUID uuid, int chunkX, int chunkZ) {
+    return isChunkLoaded(uuid, Chunk.getChunkKey(chunkX, chunkZ));
+  }
 
-    return null;
+  public boolean isChunkLoaded(UUID uuid, long chunkKey) {
+    var chunks = loadedChunks.get(uuid);
+    return chunks != null && chunks.contains(chunkKey);
+  }
+
+  /**
+   * Visits the keys of every chunk the player currently has loaded.
+   */
+  public void forEachLoadedChunk(UUID uuid, LongConsumer consumer) {
+
+    var chunks = loadedChunks.get(uuid);
+
+    if (chunks != null)
+      chunks.forEach(consumer);
+
+  }
 
+  public ChunkKeySet getPlayerLoadedChunks(Player player) {
+    return loadedChunks.get(player.getUniqueId());
   }
 
 }
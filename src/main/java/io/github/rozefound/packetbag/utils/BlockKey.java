@@ -0,0 +1,34 @@
+package io.github.rozefound.packetbag.utils;
+
+/**
+ * Packs block coordinates into a single long, using the same layout as
+ * Minecraft's {@code BlockPos#asLong} and the protocol "Position" type:
+ * 26 bits of X, 26 bits of Z and 12 bits of Y.
+ */
+public final class BlockKey {
+
+  private static final int X_OFFSET = 38;
+  private static final int Z_OFFSET = 12;
+
+  private static final long XZ_MASK = (1L << 26) - 1;
+  private static final long Y_MASK = (1L << 12) - 1;
+
+  private BlockKey() {}
+
+  public static long pack(int x, int y, int z) {
+    return ((x & XZ_MASK) << X_OFFSET) | ((z & XZ_MASK) << Z_OFFSET) | (y & Y_MASK);
+  }
+
+  public static int getX(long key) {
+    return (int) (key >> X_OFFSET);
+  }
+
+  public static int getY(long key) {
+    return (int) (key << 52 >> 52);
+  }
+
+  public static int getZ(long key) {
+    return (int) (key << 26 >> X_OFFSET);
+  }
+
+}
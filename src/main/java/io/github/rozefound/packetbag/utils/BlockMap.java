@@ -0,0 +1,301 @@
+package io.github.rozefound.packetbag.utils;
+
+import org.bukkit.block.data.BlockData;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongConsumer;
+
+/**
+ * An open-addressing map from packed block positions (see {@link BlockKey}) to block states.
+ * Values are stored as indices into a small palette, so a map where every block shares the
+ * same {@link BlockData} costs two primitive arrays and a single palette entry. Palettes past a
+ * handful of entries, such as border diffs carrying the real block of every column, are looked
+ * up through a hash index rather than scanned.
+ */
+public final class BlockMap {
+
+  @FunctionalInterface
+  public interface Visitor {
+    void accept(int x, int y, int z, BlockData blockData);
+  }
+
+  @FunctionalInterface
+  public interface StateVisitor {
+    void accept(long key, int state);
+  }
+
+  private static final int DEFAULT_CAPACITY = 16;
+
+  // Small palettes are scanned; past this many entries they are indexed by block state instead
+  private static final int MAX_SCANNED_PALETTE = 8;
+
+  private long[] keys;
+  private short[] states; // 0 marks a free slot, anything else is a palette index + 1
+  private final List<BlockData> palette = new ArrayList<>(4);
+  private Map<BlockData, Integer> paletteLookup;
+
+  private int mask;
+  private int size;
+  private int threshold;
+
+  public BlockMap() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public BlockMap(int expectedSize) {
+    allocate(tableSizeFor(expectedSize));
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public BlockData put(int x, int y, int z, BlockData blockData) {
+    return put(BlockKey.pack(x, y, z), blockData);
+  }
+
+  public BlockData put(long key, BlockData blockData) {
+    int previous = putState(key, addPaletteEntry(blockData));
+    return previous < 0 ? null : palette.get(previous);
+  }
+
+  /**
+   * Stores a palette index for a key.
+   * @return The previous palette index, or -1 if the key was absent
+   */
+  public int putState(long key, int state) {
+
+    int slot = mix(key) & mask;
+
+    while (states[slot] != 0) {
+      if (keys[slot] == key) {
+        int previous = states[slot] - 1;
+        states[slot] = (short) (state + 1);
+        return previous;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    keys[slot] = key;
+    states[slot] = (short) (state + 1);
+
+    if (++size > threshold)
+      allocate(keys.length << 1);
+
+    return -1;
+
+  }
+
+  public void putAll(BlockMap other) {
+
+    if (other.isEmpty()) return;
+
+    int[] translation = new int[other.palette.size()];
+    for (int i = 0; i < translation.length; i++)
+      translation[i] = addPaletteEntry(other.palette.get(i));
+
+    other.forEachState((key, state) -> putState(key, translation[state]));
+
+  }
+
+  public BlockData get(int x, int y, int z) {
+    return get(BlockKey.pack(x, y, z));
+  }
+
+  public BlockData get(long key) {
+    int state = getState(key);
+    return state < 0 ? null : palette.get(state);
+  }
+
+  /**
+   * @return The palette index stored for the key, or -1 if the key is absent
+   */
+  public int getState(long key) {
+
+    int slot = mix(key) & mask;
+
+    while (states[slot] != 0) {
+      if (keys[slot] == key) return states[slot] - 1;
+      slot = (slot + 1) & mask;
+    }
+
+    return -1;
+
+  }
+
+  public boolean containsKey(int x, int y, int z) {
+    return getState(BlockKey.pack(x, y, z)) >= 0;
+  }
+
+  public boolean containsKey(long key) {
+    return getState(key) >= 0;
+  }
+
+  public BlockData remove(int x, int y, int z) {
+    return remove(BlockKey.pack(x, y, z));
+  }
+
+  public BlockData remove(long key) {
+
+    int slot = mix(key) & mask;
+
+    while (states[slot] != 0) {
+      if (keys[slot] == key) {
+        var previous = palette.get(states[slot] - 1);
+        size--;
+        shiftKeys(slot);
+        return previous;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    return null;
+
+  }
+
+  public void clear() {
+
+    if (size == 0) return;
+
+    Arrays.fill(states, (short) 0);
+    size = 0;
+
+  }
+
+  public int getPaletteSize() {
+    return palette.size();
+  }
+
+  public BlockData getPaletteEntry(int state) {
+    return palette.get(state);
+  }
+
+  public void forEach(Visitor visitor) {
+    for (int slot = 0; slot < keys.length; slot++) {
+      if (states[slot] == 0) continue;
+      long key = keys[slot];
+      visitor.accept(BlockKey.getX(key), BlockKey.getY(key), BlockKey.getZ(key), palette.get(states[slot] - 1));
+    }
+  }
+
+  public void forEachKey(LongConsumer consumer) {
+    for (int slot = 0; slot < keys.length; slot++)
+      if (states[slot] != 0) consumer.accept(keys[slot]);
+  }
+
+  public void forEachState(StateVisitor visitor) {
+    for (int slot = 0; slot < keys.length; slot++)
+      if (states[slot] != 0) visitor.accept(keys[slot], states[slot] - 1);
+  }
+
+  /**
+   * Adds a block state to the palette, for use with {@link #putState(long, int)}.
+   * @return Its palette index, the existing one if the palette already holds the state
+   */
+  public int addPaletteEntry(BlockData blockData) {
+
+    if (paletteLookup != null) {
+      var index = paletteLookup.get(blockData);
+      if (index != null) return index;
+    }
+    else for (int i = 0; i < palette.size(); i++) {
+      var entry = palette.get(i);
+      if (entry == blockData || entry.equals(blockData)) return i;
+    }
+
+    if (palette.size() >= Short.MAX_VALUE)
+      throw new IllegalStateException("BlockMap palette cannot hold more than %d states".formatted((int) Short.MAX_VALUE));
+
+    palette.add(blockData);
+    int index = palette.size() - 1;
+
+    if (paletteLookup != null) paletteLookup.put(blockData, index);
+    else if (palette.size() > MAX_SCANNED_PALETTE) {
+      paletteLookup = new HashMap<>();
+      for (int i = 0; i < palette.size(); i++) paletteLookup.put(palette.get(i), i);
+    }
+
+    return index;
+
+  }
+
+  /**
+   * Closes the gap left by a removed slot by moving later entries of the same probe chain back.
+   */
+  private void shiftKeys(int slot) {
+
+    int last;
+
+    while (true) {
+
+      slot = ((last = slot) + 1) & mask;
+
+      long key;
+
+      while (true) {
+
+        if (states[slot] == 0) {
+          states[last] = 0;
+          return;
+        }
+
+        key = keys[slot];
+        int home = mix(key) & mask;
+
+        if (last <= slot ? last >= home || home > slot : last >= home && home > slot) break;
+        slot = (slot + 1) & mask;
+
+      }
+
+      keys[last] = key;
+      states[last] = states[slot];
+
+    }
+
+  }
+
+  private void allocate(int capacity) {
+
+    var oldKeys = keys;
+    var oldStates = states;
+
+    keys = new long[capacity];
+    states = new short[capacity];
+    mask = capacity - 1;
+    threshold = capacity >> 1;
+
+    if (oldKeys == null) return;
+
+    for (int i = 0; i < oldKeys.length; i++) {
+
+      if (oldStates[i] == 0) continue;
+
+      int slot = mix(oldKeys[i]) & mask;
+      while (states[slot] != 0) slot = (slot + 1) & mask;
+
+      keys[slot] = oldKeys[i];
+      states[slot] = oldStates[i];
+
+    }
+
+  }
+
+  static int tableSizeFor(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(expectedSize, 2) * 2 - 1) << 1;
+    return Math.max(capacity, DEFAULT_CAPACITY);
+  }
+
+  static int mix(long key) {
+    long hash = key * 0x9E3779B97F4A7C15L;
+    return (int) (hash ^ (hash >>> 32));
+  }
+
+}
@@ -0,0 +1,162 @@
+package io.github.rozefound.packetbag.utils;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * An open-addressing set of packed block positions (see {@link BlockKey}).
+ */
+public final class BlockSet {
+
+  private long[] keys;
+  private boolean[] used;
+
+  private int mask;
+  private int size;
+  private int threshold;
+
+  public BlockSet() {
+    this(16);
+  }
+
+  public BlockSet(int expectedSize) {
+    allocate(BlockMap.tableSizeFor(expectedSize));
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public boolean add(int x, int y, int z) {
+    return add(BlockKey.pack(x, y, z));
+  }
+
+  public boolean add(long key) {
+
+    int slot = BlockMap.mix(key) & mask;
+
+    while (used[slot]) {
+      if (keys[slot] == key) return false;
+      slot = (slot + 1) & mask;
+    }
+
+    keys[slot] = key;
+    used[slot] = true;
+
+    if (++size > threshold)
+      allocate(keys.length << 1);
+
+    return true;
+
+  }
+
+  public boolean contains(int x, int y, int z) {
+    return contains(BlockKey.pack(x, y, z));
+  }
+
+  public boolean contains(long key) {
+
+    int slot = BlockMap.mix(key) & mask;
+
+    while (used[slot]) {
+      if (keys[slot] == key) return true;
+      slot = (slot + 1) & mask;
+    }
+
+    return false;
+
+  }
+
+  public boolean remove(long key) {
+
+    int slot = BlockMap.mix(key) & mask;
+
+    while (used[slot]) {
+      if (keys[slot] == key) {
+        size--;
+        shiftKeys(slot);
+        return true;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    return false;
+
+  }
+
+  public void clear() {
+
+    if (size == 0) return;
+
+    Arrays.fill(used, false);
+    size = 0;
+
+  }
+
+  public void forEach(LongConsumer consumer) {
+    for (int slot = 0; slot < keys.length; slot++)
+      if (used[slot]) consumer.accept(keys[slot]);
+  }
+
+  private void shiftKeys(int slot) {
+
+    int last;
+
+    while (true) {
+
+      slot = ((last = slot) + 1) & mask;
+
+      long key;
+
+      while (true) {
+
+        if (!used[slot]) {
+          used[last] = false;
+          return;
+        }
+
+        key = keys[slot];
+        int home = BlockMap.mix(key) & mask;
+
+        if (last <= slot ? last >= home || home > slot : last >= home && home > slot) break;
+        slot = (slot + 1) & mask;
+
+      }
+
+      keys[last] = key;
+
+    }
+
+  }
+
+  private void allocate(int capacity) {
+
+    var oldKeys = keys;
+    var oldUsed = used;
+
+    keys = new long[capacity];
+    used = new boolean[capacity];
+    mask = capacity - 1;
+    threshold = capacity >> 1;
+
+    if (oldKeys == null) return;
+
+    for (int i = 0; i < oldKeys.length; i++) {
+
+      if (!oldUsed[i]) continue;
+
+      int slot = BlockMap.mix(oldKeys[i]) & mask;
+      while (used[slot]) slot = (slot + 1) & mask;
+
+      keys[slot] = oldKeys[i];
+      used[slot] = true;
+
+    }
+
+  }
+
+}
@@ -20,6 +20,41 @@ public class Chunk {
 
   }
 
+  /**
+   * Packs chunk coordinates into a single long, using the same layout as Minecraft's {@code ChunkPos#asLong}.
+   */
+  public static long getChunkKey(int chunkX, int chunkZ) {
+    return (chunkX & 0xFFFFFFFFL) | ((chunkZ & 0xFFFFFFFFL) << 32);
+  }
+
+  public static int getChunkKeyX(long chunkKey) {
+    return (int) chunkKey;
+  }
+
+  public static int getChunkKeyZ(long chunkKey) {
+    return (int) (chunkKey >>> 32);
+  }
+
+  /**
+   * Packs chunk section coordinates into a single long, using the same layout as Minecraft's
+   * {@code SectionPos#asLong} and the section position of the MultiBlockChange packet.
+   */
+  public static long getSectionKey(int sectionX, int sectionY, int sectionZ) {
+    return ((sectionX & 0x3FFFFFL) << 42) | ((sectionZ & 0x3FFFFFL) << 20) | (sectionY & 0xFFFFFL);
+  }
+
+  public static int getSectionKeyX(long sectionKey) {
+    return (int) (sectionKey >> 42);
+  }
+
+  public static int getSectionKeyY(long sectionKey) {
+    return (int) (sectionKey << 44 >> 44);
+  }
+
+  public static int getSectionKeyZ(long sectionKey) {
+    return (int) (sectionKey << 22 >> 42);
+  }
+
   public static Map<Vector2i, Set<Integer>> getChunkSectors(@NotNull List<Location> locations) {
 
     return locations.stream()
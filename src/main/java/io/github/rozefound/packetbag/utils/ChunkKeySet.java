@@ -0,0 +1,163 @@
+package io.github.rozefound.packetbag.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongConsumer;
+
+/**
+ * A concurrent set of packed chunk keys, as produced by {@link Chunk#getChunkKey(int, int)}.
+ * <p>
+ * Reads never lock: they probe the current table, which is only ever replaced as a whole.
+ * Writes are serialized on the set itself. Removed keys leave a tombstone behind so concurrent
+ * probes keep going past them; tombstones are dropped whenever the table is rebuilt.
+ * <p>
+ * {@link Long#MIN_VALUE} and {@link Long#MAX_VALUE} are reserved as markers. Neither is the key
+ * of a chunk within the world border, so they are never stored.
+ */
+public final class ChunkKeySet {
+
+  private static final long FREE = Long.MIN_VALUE;
+  private static final long TOMBSTONE = Long.MAX_VALUE;
+
+  private volatile AtomicLongArray table;
+
+  private volatile int size;
+  private int tombstones;
+
+  public ChunkKeySet() {
+    this(64);
+  }
+
+  public ChunkKeySet(int expectedSize) {
+    table = newTable(BlockMap.tableSizeFor(expectedSize));
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public boolean contains(int chunkX, int chunkZ) {
+    return contains(Chunk.getChunkKey(chunkX, chunkZ));
+  }
+
+  public boolean contains(long key) {
+
+    var current = table;
+    int mask = current.length() - 1;
+
+    for (int slot = BlockMap.mix(key) & mask; ; slot = (slot + 1) & mask) {
+      long value = current.get(slot);
+      if (value == FREE) return false;
+      if (value == key) return true;
+    }
+
+  }
+
+  public synchronized boolean add(long key) {
+
+    if (key == FREE || key == TOMBSTONE)
+      throw new IllegalArgumentException("Chunk key %d is reserved".formatted(key));
+
+    var current = table;
+    int mask = current.length() - 1;
+    int target = -1;
+
+    int slot = BlockMap.mix(key) & mask;
+
+    for (long value; (value = current.get(slot)) != FREE; slot = (slot + 1) & mask) {
+      if (value == key) return false;
+      if (value == TOMBSTONE && target < 0) target = slot;
+    }
+
+    if (target < 0) target = slot;
+    else tombstones--;
+
+    current.set(target, key);
+    size++;
+
+    if ((size + tombstones) > current.length() >> 1)
+      rebuild(size > current.length() >> 2 ? current.length() << 1 : current.length());
+
+    return true;
+
+  }
+
+  public synchronized boolean remove(long key) {
+
+    var current = table;
+    int mask = current.length() - 1;
+
+    for (int slot = BlockMap.mix(key) & mask; ; slot = (slot + 1) & mask) {
+
+      long value = current.get(slot);
+      if (value == FREE) return false;
+
+      if (value == key) {
+        current.set(slot, TOMBSTONE);
+        size--;
+        tombstones++;
+        return true;
+      }
+
+    }
+
+  }
+
+  public synchronized void clear() {
+    table = newTable(table.length());
+    size = 0;
+    tombstones = 0;
+  }
+
+  /**
+   * Visits every key present in the table at the time of the call, without boxing.
+   */
+  public void forEach(LongConsumer consumer) {
+
+    var current = table;
+
+    for (int slot = 0; slot < current.length(); slot++) {
+      long value = current.get(slot);
+      if (value != FREE && value != TOMBSTONE) consumer.accept(value);
+    }
+
+  }
+
+  private void rebuild(int capacity) {
+
+    var current = table;
+    var rebuilt = newTable(capacity);
+    int mask = capacity - 1;
+
+    for (int i = 0; i < current.length(); i++) {
+
+      long value = current.get(i);
+      if (value == FREE || value == TOMBSTONE) continue;
+
+      int slot = BlockMap.mix(value) & mask;
+      while (rebuilt.get(slot) != FREE) slot = (slot + 1) & mask;
+
+      rebuilt.set(slot, value);
+
+    }
+
+    tombstones = 0;
+    table = rebuilt;
+
+  }
+
+  private static AtomicLongArray newTable(int capacity) {
+
+    var array = new AtomicLongArray(capacity);
+
+    for (int i = 0; i < capacity; i++)
+      array.set(i, FREE);
+
+    return array;
+
+  }
+
+}
@@ -1,77 +1,355 @@
 package io.github.rozefound.packetbag.utils;
 
 import com.github.retrooper.packetevents.PacketEvents;
+import com.github.retrooper.packetevents.protocol.packettype.PacketType;
 import com.github.retrooper.packetevents.util.Vector3i;
 import com.github.retrooper.packetevents.wrapper.play.server.WrapperPlayServerBlockChange;
 import com.github.retrooper.packetevents.wrapper.play.server.WrapperPlayServerMultiBlockChange;
 import io.github.retrooper.packetevents.util.SpigotConversionUtil;
-import org.bukkit.Chunk;
+import io.github.rozefound.packetbag.jfr.FakeBlockSendEvent;
+import io.netty.buffer.ByteBuf;
+import net.minecraft.network.protocol.game.ClientboundLevelChunkWithLightPacket;
 import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.craftbukkit.CraftWorld;
+import org.bukkit.craftbukkit.entity.CraftPlayer;
 import org.bukkit.block.data.BlockData;
 import org.bukkit.entity.Player;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongConsumer;
+import java.util.function.ToIntFunction;
 
 import static com.github.retrooper.packetevents.wrapper.play.server.WrapperPlayServerMultiBlockChange.EncodedBlock;
 
 public class FakeBlock {
 
+  private static final Map<BlockData, Integer> globalIdCache = new ConcurrentHashMap<>();
+
+  /**
+   * Rough size of one section in a chunk packet: a paletted block state container of
+   * 4 to 8 bits per entry, biomes and some block light.
+   */
+  public static final int SECTION_RESEND_BYTES = 2560;
+
+  /**
+   * Rough size of a section holding only air in a chunk packet: single valued block states and
+   * biomes, and the block count.
+   */
+  public static final int EMPTY_SECTION_RESEND_BYTES = 8;
+
+  /**
+   * Rough size of what a chunk packet carries besides its sections: position, heightmaps,
+   * block entities and light masks.
+   */
+  public static final int CHUNK_RESEND_OVERHEAD_BYTES = 640;
+
+  @FunctionalInterface
+  public interface SectionConsumer {
+    void accept(long sectionKey, EncodedBlock[] blocks);
+  }
+
+  /**
+   * Resolves the protocol global ID of a block state, caching the result since
+   * the conversion through PacketEvents is far more expensive than a lookup.
+   */
+  public static int getGlobalId(BlockData blockData) {
+    return globalIdCache.computeIfAbsent(blockData, data -> SpigotConversionUtil.fromBukkitBlockData(data).getGlobalId());
+  }
+
   public static void sendFakeBlock(Player player, Location location, BlockData blockData) {
 
-    var blockPosition = SpigotConversionUtil.fromBukkitLocation(location).getPosition().toVector3i();
-    var blockId = SpigotConversionUtil.fromBukkitBlockData(blockData).getGlobalId();
+    var blockPosition = new Vector3i(location.getBlockX(), location.getBlockY(), location.getBlockZ());
 
-    var packet = new WrapperPlayServerBlockChange(blockPosition, blockId);
+    var packet = new WrapperPlayServerBlockChange(blockPosition, getGlobalId(blockData));
     PacketEvents.getAPI().getPlayerManager().sendPacket(player, packet);
 
+    Metrics.recordSynthetic(PacketType.Play.Server.BLOCK_CHANGE, 1);
+
   }
 
-  public static void sendFakeBlocks(Player player, Map<Location, BlockData> blockChanges) {
+  /**
+   * Sends the changes as one MultiBlockChange per section. They are written silently: they
+   * already carry the overlay's blocks, and the packet listener would only decode them again.
+   * @param sentSection Receives the key of every section sent, to do what the listener would
+   *                    have done for it, such as darkening it
+   */
+  public static void sendFakeBlocks(Player player, BlockMap blockChanges, LongConsumer sentSection) {
 
     if (blockChanges.isEmpty()) return;
 
-    // Group block changes by the chunk they belong to
-    Map<Chunk, Map<Location, BlockData>> perChunk = blockChanges.entrySet().stream()
-      .collect(Collectors.groupingBy(
-        entry -> entry.getKey().getChunk(),
-        Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)
-      ));
+    var send = new FakeBlockSendEvent();
+    send.begin();
+
+    boolean recording = send.isEnabled();
+    long[] bytes = { 0 };
+    int[] sections = { 0 };
+
+    encodeSections(blockChanges, FakeBlock::getGlobalId, (sectionKey, blocks) -> {
+
+      var sectionPos = new Vector3i(Chunk.getSectionKeyX(sectionKey), Chunk.getSectionKeyY(sectionKey), Chunk.getSectionKeyZ(sectionKey));
+
+      var packet = new WrapperPlayServerMultiBlockChange(sectionPos, true, blocks);
+      PacketEvents.getAPI().getPlayerManager().sendPacketSilently(player, packet);
 
-    for (var entry : perChunk.entrySet()) {
+      Metrics.recordSynthetic(PacketType.Play.Server.MULTI_BLOCK_CHANGE, 1);
+      sentSection.accept(sectionKey);
 
-      Chunk chunk = entry.getKey();
-      Map<Location, BlockData> chunkChanges = entry.getValue();
+      sections[0]++;
+      if (recording) bytes[0] += estimateMultiBlockChangeBytes(blocks);
+
+    });
+
+    send.end();
+
+    if (send.shouldCommit()) {
+      send.player = player.getName();
+      send.blockCount = blockChanges.size();
+      send.sectionCount = sections[0];
+      send.bytes = bytes[0];
+      send.commit();
+    }
+
+  }
+
+  /**
+   * Approximates the encoded size of a MultiBlockChange for one section: packet id, section
+   * position, entry count and one VarLong of global id and local position per block.
+   */
+  public static int estimateMultiBlockChangeBytes(BlockMap sectionChanges) {
+
+    int[] entryBytes = new int[sectionChanges.getPaletteSize()];
+
+    for (int i = 0; i < entryBytes.length; i++)
+      entryBytes[i] = entryBytes(getGlobalId(sectionChanges.getPaletteEntry(i)));
+
+    int[] bytes = { 1 + Long.BYTES + 3 };
+    sectionChanges.forEachState((key, state) -> bytes[0] += entryBytes[state]);
+
+    return bytes[0];
+
+  }
 
-      // Further group by chunk section (Y-level)
-      Map<Integer, Map<Location, BlockData>> perSection = chunkChanges.entrySet().stream()
-        .collect(Collectors.groupingBy(
-          locEntry -> locEntry.getKey().getBlockY() >> 4, // Y-level / 16
-          Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)
-        ));
+  /**
+   * The same estimate for a section that is already encoded.
+   */
+  public static int estimateMultiBlockChangeBytes(EncodedBlock[] blocks) {
+
+    int bytes = 1 + Long.BYTES + 3;
+
+    for (var block : blocks)
+      bytes += entryBytes(block.getBlockId());
+
+    return bytes;
+
+  }
+
+  /**
+   * Size of one MultiBlockChange entry: a VarLong of the global id above a 12 bit local position.
+   */
+  private static int entryBytes(int globalId) {
+    int bits = 64 - Long.numberOfLeadingZeros((long) globalId << 12 | 0xFFF);
+    return (bits + 6) / 7;
+  }
+
+  /**
+   * Approximates the size of a chunk packet. Sections holding only air cost next to nothing,
+   * so a chunk that is mostly sky is cheap to resend even for a single dense section.
+   * @param filledSections How many of the chunk's sections hold anything but air, real or fake
+   * @param sectionCount The number of sections in the chunk's world
+   */
+  public static long estimateResendBytes(int filledSections, int sectionCount) {
+    return CHUNK_RESEND_OVERHEAD_BYTES + (long) filledSections * SECTION_RESEND_BYTES + (long) (sectionCount - filledSections) * EMPTY_SECTION_RESEND_BYTES;
+  }
+
+  /**
+   * Whether resending a whole chunk is cheaper than the MultiBlockChange packets for its changes.
+   * @param multiBlockChangeBytes The combined estimate for every changed section of the chunk
+   * @param resendBytes The chunk packet's estimate, see {@link #estimateResendBytes(int, int)}
+   */
+  public static boolean isCheaperToResend(long multiBlockChangeBytes, long resendBytes) {
+    return multiBlockChangeBytes > resendBytes;
+  }
+
+  /**
+   * Marks the sections of a chunk the server holds anything but air in. Main thread only.
+   * @param filled Receives one bit per section, from the bottom of the world
+   * @return Whether the chunk is loaded; nothing is marked otherwise
+   */
+  public static boolean markFilledSections(World world, int chunkX, int chunkZ, BitSet filled) {
+
+    var chunk = ((CraftWorld) world).getHandle().getChunkSource().getChunkNow(chunkX, chunkZ);
+    if (chunk == null) return false;
+
+    var sections = chunk.getSections();
+
+    for (int i = 0; i < sections.length; i++)
+      if (!sections[i].hasOnlyAir()) filled.set(i);
+
+    return true;
+
+  }
+
+  /**
+   * Resends a chunk as the server currently has it. Fake blocks only survive this if they were
+   * recorded in the FakeBlockOverlay, which writes them into the outgoing chunk packet.
+   * @return Whether the chunk was loaded and sent
+   */
+  public static boolean resendChunk(Player player, int chunkX, int chunkZ) {
+
+    var level = ((CraftWorld) player.getWorld()).getHandle();
+
+    var chunk = level.getChunkSource().getChunkNow(chunkX, chunkZ);
+    if (chunk == null) return false;
+
+    ((CraftPlayer) player).getHandle().connection.send(new ClientboundLevelChunkWithLightPacket(chunk, level.getLightEngine(), null, null));
+    Metrics.recordSynthetic(PacketType.Play.Server.CHUNK_DATA, 1);
+
+    return true;
+
+  }
 
+  /**
+   * Writes a whole MultiBlockChange packet, id included, in the layout used since 1.20:
+   * section position, entry count, then one VarLong of global id and local position per block.
+   */
+  public static void writeMultiBlockChange(ByteBuf buffer, int packetId, long sectionKey, EncodedBlock[] blocks) {
 
-      for (var sectionEntry : perSection.entrySet()) {
+    writeVarLong(buffer, packetId);
+    buffer.writeLong(sectionKey);
+    writeVarLong(buffer, blocks.length);
 
-        List<EncodedBlock> encodedBlocks = new ArrayList<>();
+    for (var block : blocks)
+      writeVarLong(buffer, (long) block.getBlockId() << 12 | (block.getX() & 15) << 8 | (block.getZ() & 15) << 4 | (block.getY() & 15));
+
+  }
+
+  private static void writeVarLong(ByteBuf buffer, long value) {
+
+    while ((value & ~0x7FL) != 0) {
+      buffer.writeByte((int) (value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+
+    buffer.writeByte((int) value);
+
+  }
+
+  /**
+   * Splits block changes into per-section MultiBlockChange payloads in a single pass.
+   * Global IDs are resolved once per palette entry rather than once per block.
+   */
+  public static void encodeSections(BlockMap blockChanges, ToIntFunction<BlockData> idResolver, SectionConsumer consumer) {
+
+    int[] globalIds = new int[blockChanges.getPaletteSize()];
+
+    for (int i = 0; i < globalIds.length; i++)
+      globalIds[i] = idResolver.applyAsInt(blockChanges.getPaletteEntry(i));
+
+    var buckets = new SectionBuckets();
+
+    blockChanges.forEachState((key, state) -> {
+
+      int x = BlockKey.getX(key);
+      int y = BlockKey.getY(key);
+      int z = BlockKey.getZ(key);
+
+      buckets.add(Chunk.getSectionKey(x >> 4, y >> 4, z >> 4), new EncodedBlock(globalIds[state], x, y, z));
+
+    });
+
+    buckets.forEach(consumer);
+
+  }
+
+  /**
+   * Groups encoded blocks by section key without boxing, using an open-addressing
+   * index into a list of growable arrays.
+   */
+  private static final class SectionBuckets {
+
+    private long[] keys = new long[16];
+    private int[] indices = new int[16];
+
+    private EncodedBlock[][] blocks = new EncodedBlock[8][];
+    private long[] sectionKeys = new long[8];
+    private int[] counts = new int[8];
+
+    private int size;
+
+    void add(long sectionKey, EncodedBlock block) {
+
+      int bucket = bucketFor(sectionKey);
+      var bucketBlocks = blocks[bucket];
+
+      if (counts[bucket] == bucketBlocks.length)
+        blocks[bucket] = bucketBlocks = Arrays.copyOf(bucketBlocks, bucketBlocks.length << 1);
+
+      bucketBlocks[counts[bucket]++] = block;
+
+    }
+
+    void forEach(SectionConsumer consumer) {
+
+      for (int bucket = 0; bucket < size; bucket++) {
+
+        var bucketBlocks = blocks[bucket];
+        if (bucketBlocks.length != counts[bucket])
+          bucketBlocks = Arrays.copyOf(bucketBlocks, counts[bucket]);
+
+        consumer.accept(sectionKeys[bucket], bucketBlocks);
+
+      }
+
+    }
+
+    private int bucketFor(long sectionKey) {
+
+      int mask = keys.length - 1;
+      int slot = BlockMap.mix(sectionKey) & mask;
+
+      while (indices[slot] != 0) {
+        if (keys[slot] == sectionKey) return indices[slot] - 1;
+        slot = (slot + 1) & mask;
+      }
+
+      if (size == sectionKeys.length) {
+        blocks = Arrays.copyOf(blocks, size << 1);
+        sectionKeys = Arrays.copyOf(sectionKeys, size << 1);
+        counts = Arrays.copyOf(counts, size << 1);
+      }
+
+      int bucket = size++;
+
+      blocks[bucket] = new EncodedBlock[64];
+      sectionKeys[bucket] = sectionKey;
+
+      keys[slot] = sectionKey;
+      indices[slot] = bucket + 1;
+
+      if (size > keys.length >> 1) rehash();
+
+      return bucket;
+
+    }
 
-        for (var blockEntry : sectionEntry.getValue().entrySet()) {
+    private void rehash() {
 
-          Location loc = blockEntry.getKey();
-          var blockId = SpigotConversionUtil.fromBukkitBlockData(blockEntry.getValue()).getGlobalId();
+      keys = new long[keys.length << 1];
+      indices = new int[indices.length << 1];
 
-          var encodedBlock = new EncodedBlock(blockId, loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
-          encodedBlocks.add(encodedBlock);
+      int mask = keys.length - 1;
 
-        }
+      for (int bucket = 0; bucket < size; bucket++) {
 
-        var sectionPos = new Vector3i(chunk.getX(), sectionEntry.getKey(), chunk.getZ());
-        var blocksData = encodedBlocks.toArray(EncodedBlock[]::new);
+        int slot = BlockMap.mix(sectionKeys[bucket]) & mask;
+        while (indices[slot] != 0) slot = (slot + 1) & mask;
 
-        var packet = new WrapperPlayServerMultiBlockChange(sectionPos, true, blocksData);
-        PacketEvents.getAPI().getPlayerManager().sendPacket(player, packet);
+        keys[slot] = sectionKeys[bucket];
+        indices[slot] = bucket + 1;
 
       }
 
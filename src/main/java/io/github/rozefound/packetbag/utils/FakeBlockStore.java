@@ -0,0 +1,338 @@
+package io.github.rozefound.packetbag.utils;
+
+import org.bukkit.block.data.BlockData;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongConsumer;
+
+/**
+ * One player's fake blocks, as {@link PalettedSection}s grouped into chunk columns.
+ * <p>
+ * Lookups cost a chunk map lookup plus an array index, whatever the number of blocks.
+ * Sections are dropped as soon as their last block is removed. Stores built with a dirty
+ * section limit also remember every section written to since the last
+ * {@link #drainDirtySections(LongConsumer)} by its section key, up to that limit; past it they
+ * only remember that everything may have changed.
+ * <p>
+ * Not thread-safe; callers are expected to guard the store.
+ */
+public final class FakeBlockStore {
+
+  @FunctionalInterface
+  public interface SectionVisitor {
+    void accept(int sectionY, PalettedSection section);
+  }
+
+  private static final class Column {
+
+    private int minSectionY;
+    private PalettedSection[] sections = new PalettedSection[0];
+    private int sectionCount;
+
+    private PalettedSection get(int sectionY) {
+      int index = sectionY - minSectionY;
+      return index < 0 || index >= sections.length ? null : sections[index];
+    }
+
+    private PalettedSection getOrCreate(int sectionY) {
+
+      if (sections.length == 0) minSectionY = sectionY;
+
+      int index = sectionY - minSectionY;
+
+      if (index < 0) {
+        var grown = new PalettedSection[sections.length - index];
+        System.arraycopy(sections, 0, grown, -index, sections.length);
+        sections = grown;
+        minSectionY = sectionY;
+        index = 0;
+      }
+      else if (index >= sections.length) sections = Arrays.copyOf(sections, index + 1);
+
+      var section = sections[index];
+
+      if (section == null) {
+        section = sections[index] = new PalettedSection();
+        sectionCount++;
+      }
+
+      return section;
+
+    }
+
+    private void remove(int sectionY) {
+      sections[sectionY - minSectionY] = null;
+      sectionCount--;
+    }
+
+  }
+
+  // The map entry, the boxed key and the column itself
+  private static final long COLUMN_BYTES = 96;
+
+  private final Map<Long, Column> columns = new HashMap<>();
+
+  // Section keys rather than block keys, the set only cares about them being longs
+  private final BlockSet dirtySections = new BlockSet();
+  private final int maxDirtySections;
+  private boolean dirtyOverflow;
+
+  private int size;
+  private long bytes;
+
+  /**
+   * Builds a store that does not track which sections changed.
+   */
+  public FakeBlockStore() {
+    this(0);
+  }
+
+  /**
+   * @param maxDirtySections How many changed sections to remember individually, 0 to not track them at all
+   */
+  public FakeBlockStore(int maxDirtySections) {
+    this.maxDirtySections = maxDirtySections;
+  }
+
+  /**
+   * @return How many fake blocks are stored
+   */
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public boolean hasChunk(int chunkX, int chunkZ) {
+    return columns.containsKey(Chunk.getChunkKey(chunkX, chunkZ));
+  }
+
+  public BlockData get(int x, int y, int z) {
+
+    var column = columns.get(Chunk.getChunkKey(x >> 4, z >> 4));
+    if (column == null) return null;
+
+    var section = column.get(y >> 4);
+    return section == null ? null : section.get(PalettedSection.index(x, y, z));
+
+  }
+
+  public BlockData get(long key) {
+    return get(BlockKey.getX(key), BlockKey.getY(key), BlockKey.getZ(key));
+  }
+
+  /**
+   * @param blockData The fake block, never {@code null}; use {@link #remove(int, int, int)} to clear a position
+   * @return The previous fake block, or {@code null} if there was none
+   */
+  public BlockData put(int x, int y, int z, BlockData blockData) {
+
+    long chunkKey = Chunk.getChunkKey(x >> 4, z >> 4);
+
+    var column = columns.get(chunkKey);
+
+    if (column == null) {
+      columns.put(chunkKey, column = new Column());
+      bytes += COLUMN_BYTES;
+    }
+
+    int length = column.sections.length;
+    int sectionCount = column.sectionCount;
+
+    var section = column.getOrCreate(y >> 4);
+    long sectionBytes = column.sectionCount == sectionCount ? section.estimatedBytes() : 0;
+
+    var previous = section.set(PalettedSection.index(x, y, z), blockData);
+
+    // Kept up to date here so that budget checks do not have to walk every section
+    bytes += (column.sections.length - length) * 4L + section.estimatedBytes() - sectionBytes;
+
+    if (previous == null) size++;
+    if (previous == null || !previous.equals(blockData)) markDirty(x >> 4, y >> 4, z >> 4);
+
+    return previous;
+
+  }
+
+  public BlockData put(long key, BlockData blockData) {
+    return put(BlockKey.getX(key), BlockKey.getY(key), BlockKey.getZ(key), blockData);
+  }
+
+  public void putAll(BlockMap blocks) {
+    blocks.forEachState((key, state) -> put(key, blocks.getPaletteEntry(state)));
+  }
+
+  /**
+   * @return The removed fake block, or {@code null} if there was none
+   */
+  public BlockData remove(int x, int y, int z) {
+
+    long chunkKey = Chunk.getChunkKey(x >> 4, z >> 4);
+
+    var column = columns.get(chunkKey);
+    if (column == null) return null;
+
+    var section = column.get(y >> 4);
+    if (section == null) return null;
+
+    long sectionBytes = section.estimatedBytes();
+
+    var previous = section.set(PalettedSection.index(x, y, z), null);
+    if (previous == null) return null;
+
+    size--;
+    markDirty(x >> 4, y >> 4, z >> 4);
+
+    if (section.isEmpty()) {
+
+      bytes -= sectionBytes;
+      column.remove(y >> 4);
+
+      if (column.sectionCount == 0) {
+        bytes -= COLUMN_BYTES + column.sections.length * 4L;
+        columns.remove(chunkKey);
+      }
+
+    }
+    else bytes += section.estimatedBytes() - sectionBytes;
+
+    return previous;
+
+  }
+
+  public BlockData remove(long key) {
+    return remove(BlockKey.getX(key), BlockKey.getY(key), BlockKey.getZ(key));
+  }
+
+  public void clear() {
+
+    columns.forEach((chunkKey, column) -> {
+      for (int i = 0; i < column.sections.length; i++)
+        if (column.sections[i] != null) markDirty(Chunk.getChunkKeyX(chunkKey), column.minSectionY + i, Chunk.getChunkKeyZ(chunkKey));
+    });
+
+    columns.clear();
+    size = 0;
+    bytes = 0;
+
+  }
+
+  /**
+   * Visits every fake block, section by section.
+   */
+  public void forEach(BlockMap.Visitor visitor) {
+
+    columns.forEach((chunkKey, column) -> {
+
+      int baseX = Chunk.getChunkKeyX(chunkKey) << 4, baseZ = Chunk.getChunkKeyZ(chunkKey) << 4;
+
+      for (int i = 0; i < column.sections.length; i++) {
+
+        var section = column.sections[i];
+        if (section == null) continue;
+
+        int baseY = (column.minSectionY + i) << 4;
+        section.forEach((index, state) -> visitor.accept(baseX + (index & 15), baseY + (index >> 8), baseZ + (index >> 4 & 15), section.getPaletteEntry(state)));
+
+      }
+
+    });
+
+  }
+
+  /**
+   * Visits the non-empty sections of a chunk column, from the bottom up.
+   */
+  public void forEachSection(int chunkX, int chunkZ, SectionVisitor visitor) {
+
+    var column = columns.get(Chunk.getChunkKey(chunkX, chunkZ));
+    if (column == null) return;
+
+    for (int i = 0; i < column.sections.length; i++)
+      if (column.sections[i] != null) visitor.accept(column.minSectionY + i, column.sections[i]);
+
+  }
+
+  /**
+   * Visits the fake blocks inside a box, both ends inclusive, section by section.
+   */
+  public void forEachInBox(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, BlockMap.Visitor visitor) {
+
+    for (int chunkX = minX >> 4; chunkX <= maxX >> 4; chunkX++)
+      for (int chunkZ = minZ >> 4; chunkZ <= maxZ >> 4; chunkZ++) {
+
+        var column = columns.get(Chunk.getChunkKey(chunkX, chunkZ));
+        if (column == null) continue;
+
+        for (int sectionY = minY >> 4; sectionY <= maxY >> 4; sectionY++) {
+
+          var section = column.get(sectionY);
+          if (section == null) continue;
+
+          int baseX = chunkX << 4, baseY = sectionY << 4, baseZ = chunkZ << 4;
+
+          section.forEachInBox(
+            Math.max(minX - baseX, 0), Math.max(minY - baseY, 0), Math.max(minZ - baseZ, 0),
+            Math.min(maxX - baseX, 15), Math.min(maxY - baseY, 15), Math.min(maxZ - baseZ, 15),
+            (index, state) -> visitor.accept(baseX + (index & 15), baseY + (index >> 8), baseZ + (index >> 4 & 15), section.getPaletteEntry(state)));
+
+        }
+
+      }
+
+  }
+
+  /**
+   * Hands out the keys (see {@link Chunk#getSectionKey(int, int, int)}) of every section changed
+   * since the last call, including sections that have since become empty, and forgets them.
+   * @return Whether the keys handed out are complete; {@code false} when more sections changed
+   *         than the store remembers, and every section has to be treated as changed
+   */
+  public boolean drainDirtySections(LongConsumer consumer) {
+
+    boolean complete = !dirtyOverflow;
+
+    dirtySections.forEach(consumer);
+    dirtySections.clear();
+    dirtyOverflow = false;
+
+    return complete;
+
+  }
+
+  public int getSectionCount() {
+    int count = 0;
+    for (var column : columns.values()) count += column.sectionCount;
+    return count;
+  }
+
+  /**
+   * @return A rough heap footprint in bytes, for budgeting
+   */
+  public long estimatedBytes() {
+    return bytes + dirtySections.size() * 18L;
+  }
+
+  private void markDirty(int sectionX, int sectionY, int sectionZ) {
+
+    if (maxDirtySections == 0 || dirtyOverflow) return;
+
+    long sectionKey = Chunk.getSectionKey(sectionX, sectionY, sectionZ);
+    if (dirtySections.contains(sectionKey)) return;
+
+    // Past the limit the individual keys stop being worth their memory
+    if (dirtySections.size() >= maxDirtySections) {
+      dirtySections.clear();
+      dirtyOverflow = true;
+      return;
+    }
+
+    dirtySections.add(sectionKey);
+
+  }
+
+}
@@ -4,8 +4,32 @@ import io.papermc.paper.math.BlockPosition;
 import net.minecraft.core.BlockPos;
 import net.minecraft.server.level.ServerLevel;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
 public class Light {
 
+  /** The size of a light section array: 4096 nibbles. */
+  public static final int SECTION_BYTES = 2048;
+
+  /**
+   * Reads a light array as 256 little-endian longs. Nibbles are ordered by Y, then Z, then X,
+   * low nibble first, so each word holds exactly one row of 16 X values at a fixed Y and Z,
+   * with X = n in bits 4n to 4n + 3.
+   */
+  private static final VarHandle ROWS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+  private static final long NIBBLE_ONES = 0x1111111111111111L;
+  private static final long LOW_NIBBLES = 0x0F0F0F0F0F0F0F0FL;
+  private static final long LANE_HIGH_BITS = 0x8080808080808080L;
+
+  @FunctionalInterface
+  public interface VoxelVisitor {
+    void accept(int x, int y, int z, int level);
+  }
+
   /**
    * Calculates the index within the 4096-value conceptual array for a given coordinate.
    * Minecraft typically orders by Y, then Z, then X.
@@ -32,6 +56,18 @@ public class Light {
     return new int[]{x, y, z};
   }
 
+  public static int getIndexX(int index) {
+    return index & 15;
+  }
+
+  public static int getIndexY(int index) {
+    return index >> 8;
+  }
+
+  public static int getIndexZ(int index) {
+    return (index >> 4) & 15;
+  }
+
   /**
    * Gets the light value (0-15) for a specific block from the raw light data array.
    */
@@ -89,4 +125,209 @@ public class Light {
 
   }
 
+  /**
+   * Sets every value of a section to the same light level.
+   */
+  public static void fill(byte[] data, int lightLevel) {
+    checkSection(data);
+    lightLevel = Math.max(0, Math.min(15, lightLevel));
+    Arrays.fill(data, (byte) (lightLevel | lightLevel << 4));
+  }
+
+  /**
+   * Sets every value within an inclusive box of section coordinates (0-15) to the same light level,
+   * one row of 16 values per write.
+   */
+  public static void fill(byte[] data, int minX, int minY, int minZ, int maxX, int maxY, int maxZ, int lightLevel) {
+
+    checkSection(data);
+
+    if (minX > maxX) return;
+
+    lightLevel = Math.max(0, Math.min(15, lightLevel));
+
+    long rowMask = rowMask(minX, maxX);
+    long value = lightLevel * NIBBLE_ONES & rowMask;
+
+    for (int y = minY; y <= maxY; y++)
+      for (int z = minZ; z <= maxZ; z++) {
+        int offset = rowOffset(y, z);
+        ROWS.set(data, offset, (long) ROWS.get(data, offset) & ~rowMask | value);
+      }
+
+  }
+
+  /**
+   * Lowers every value above {@code maxLevel} to it.
+   */
+  public static void clamp(byte[] data, int maxLevel) {
+
+    checkSection(data);
+
+    long limit = Math.max(0, Math.min(15, maxLevel)) * NIBBLE_ONES;
+
+    for (int offset = 0; offset < SECTION_BYTES; offset += Long.BYTES)
+      ROWS.set(data, offset, minNibbles((long) ROWS.get(data, offset), limit));
+
+  }
+
+  /**
+   * Merges {@code other} into {@code target}, keeping the brighter value of each pair.
+   */
+  public static void max(byte[] target, byte[] other) {
+
+    checkSection(target);
+    checkSection(other);
+
+    for (int offset = 0; offset < SECTION_BYTES; offset += Long.BYTES)
+      ROWS.set(target, offset, maxNibbles((long) ROWS.get(target, offset), (long) ROWS.get(other, offset)));
+
+  }
+
+  /**
+   * Merges {@code other} into {@code target}, keeping the darker value of each pair.
+   */
+  public static void min(byte[] target, byte[] other) {
+
+    checkSection(target);
+    checkSection(other);
+
+    for (int offset = 0; offset < SECTION_BYTES; offset += Long.BYTES)
+      ROWS.set(target, offset, minNibbles((long) ROWS.get(target, offset), (long) ROWS.get(other, offset)));
+
+  }
+
+  /**
+   * Zeroes every value whose bit is clear in {@code mask}.
+   * @param mask 4096 bits as 64 longs, bit {@code i} standing for {@link #getLightArrayIndex} {@code i}
+   */
+  public static void applyMask(byte[] data, long[] mask) {
+
+    checkSection(data);
+
+    if (mask.length != 64)
+      throw new IllegalArgumentException("A section mask has 64 words, got %d".formatted(mask.length));
+
+    for (int row = 0; row < 256; row++) {
+
+      // Spread the row's 16 bits to the lowest bit of each nibble, then fill the nibbles
+      long bits = (mask[row >> 2] >>> ((row & 3) << 4)) & 0xFFFF;
+      long keep = Long.expand(bits, NIBBLE_ONES) * 0xF;
+
+      int offset = row * Long.BYTES;
+      ROWS.set(data, offset, (long) ROWS.get(data, offset) & keep);
+
+    }
+
+  }
+
+  public static boolean isAllZero(byte[] data) {
+    return isAll(data, 0L);
+  }
+
+  public static boolean isAllFull(byte[] data) {
+    return isAll(data, -1L);
+  }
+
+  /**
+   * Finds the level shared by every value of a section.
+   * @return The level, or -1 when the section holds more than one
+   */
+  public static int getUniformLevel(byte[] data) {
+
+    checkSection(data);
+
+    int level = data[0] & 15;
+    return isAll(data, level * NIBBLE_ONES) ? level : -1;
+
+  }
+
+  /**
+   * Visits every value of a section in index order.
+   */
+  public static void forEach(byte[] data, VoxelVisitor visitor) {
+
+    checkSection(data);
+
+    for (int row = 0; row < 256; row++) {
+
+      long word = (long) ROWS.get(data, row * Long.BYTES);
+
+      for (int x = 0; x < 16; x++)
+        visitor.accept(x, row >> 4, row & 15, (int) (word >>> (x << 2)) & 15);
+
+    }
+
+  }
+
+  /**
+   * Visits only the values above zero, skipping dark rows in a single comparison.
+   */
+  public static void forEachNonZero(byte[] data, VoxelVisitor visitor) {
+
+    checkSection(data);
+
+    for (int row = 0; row < 256; row++) {
+
+      long word = (long) ROWS.get(data, row * Long.BYTES);
+
+      while (word != 0) {
+        int shift = Long.numberOfTrailingZeros(word) & ~3;
+        visitor.accept(shift >> 2, row >> 4, row & 15, (int) (word >>> shift) & 15);
+        word &= ~(0xFL << shift);
+      }
+
+    }
+
+  }
+
+  private static boolean isAll(byte[] data, long expected) {
+
+    checkSection(data);
+
+    for (int offset = 0; offset < SECTION_BYTES; offset += Long.BYTES)
+      if ((long) ROWS.get(data, offset) != expected) return false;
+
+    return true;
+
+  }
+
+  private static long maxNibbles(long a, long b) {
+    return mergeLanes(a & LOW_NIBBLES, b & LOW_NIBBLES, true) | mergeLanes(a >>> 4 & LOW_NIBBLES, b >>> 4 & LOW_NIBBLES, true) << 4;
+  }
+
+  private static long minNibbles(long a, long b) {
+    return mergeLanes(a & LOW_NIBBLES, b & LOW_NIBBLES, false) | mergeLanes(a >>> 4 & LOW_NIBBLES, b >>> 4 & LOW_NIBBLES, false) << 4;
+  }
+
+  /**
+   * Picks the larger or smaller of each pair of byte lanes holding values 0-15. Setting the top
+   * bit of every lane of {@code a} before subtracting keeps borrows from crossing lanes, and
+   * leaves the top bit set exactly where {@code a >= b}.
+   */
+  private static long mergeLanes(long a, long b, boolean keepLarger) {
+
+    long greaterOrEqual = ((a | LANE_HIGH_BITS) - b) & LANE_HIGH_BITS;
+    long pickA = (greaterOrEqual >>> 7) * 0xFF;
+
+    if (!keepLarger) pickA = ~pickA;
+
+    return a & pickA | b & ~pickA;
+
+  }
+
+  private static long rowMask(int minX, int maxX) {
+    int width = (maxX - minX + 1) << 2;
+    return (width >= 64 ? -1L : (1L << width) - 1) << (minX << 2);
+  }
+
+  private static int rowOffset(int y, int z) {
+    return (y << 4 | z) * Long.BYTES;
+  }
+
+  private static void checkSection(byte[] data) {
+    if (data.length != SECTION_BYTES)
+      throw new IllegalArgumentException("A light section has %d bytes, got %d".formatted(SECTION_BYTES, data.length));
+  }
+
 }
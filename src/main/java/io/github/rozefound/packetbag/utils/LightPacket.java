@@ -1,19 +1,17 @@
 package io.github.rozefound.packetbag.utils;
 
 import com.github.retrooper.packetevents.PacketEvents;
-import com.github.retrooper.packetevents.protocol.world.chunk.LightData;
+import com.github.retrooper.packetevents.protocol.packettype.PacketType;
 import com.github.retrooper.packetevents.wrapper.play.server.WrapperPlayServerUpdateLight;
+import io.github.rozefound.packetbag.jfr.DarkLightEvent;
 import org.bukkit.Location;
 import org.bukkit.entity.Player;
 import org.joml.Vector2i;
 
 import java.util.*;
-import java.util.stream.Collectors;
 
 public class LightPacket {
 
-  private static final byte[] EMPTY_LIGHT_SECTION = new byte[2048];
-
   public static void sendDarkLight(Player player, Location location, boolean skyUpdates, boolean blockUpdates) {
 
     List<Location> locations = new ArrayList<>();
@@ -25,47 +23,77 @@ public class LightPacket {
 
   public static void sendDarkLight(Player player, Map<Vector2i, Set<Integer>> sectorMap, boolean skyUpdates, boolean blockUpdates) {
 
+    int minSection = player.getWorld().getMinHeight() >> 4;
+
     for (var entry : sectorMap.entrySet()) {
 
       var chunkCoords = entry.getKey();
-      var sectors = entry.getValue();
 
-      var lightSectors = sectors.stream().map(sector -> sector - (player.getWorld().getMinHeight() >> 4) + 1).collect(Collectors.toSet());
+      BitSet lightSections = new BitSet();
 
-      BitSet skyLightMask = new BitSet();
-      BitSet blockLightMask = new BitSet();
+      for (var sector : entry.getValue())
+        lightSections.set(sector - minSection + 1);
 
-      List<byte[]> skyLightArray = new ArrayList<>();
-      List<byte[]> blockLightArray = new ArrayList<>();
+      sendDarkLight(player, chunkCoords.x(), chunkCoords.y(), lightSections, skyUpdates, blockUpdates);
 
-      for (var sector : lightSectors) {
+    }
 
-        if (skyUpdates) {
-          skyLightMask.set(sector);
-          skyLightArray.add(EMPTY_LIGHT_SECTION);
-        }
+  }
 
-        if (blockUpdates) {
-          blockLightMask.set(sector);
-          blockLightArray.add(EMPTY_LIGHT_SECTION);
-        }
+  /**
+   * Sends one light update for a chunk, darkening the given light sections.
+   * @param lightSections Indices into the light arrays, where index 0 is the section below the world
+   */
+  public static void sendDarkLight(Player player, int chunkX, int chunkZ, BitSet lightSections, boolean skyUpdates, boolean blockUpdates) {
 
-      }
+    var darkLight = new DarkLightEvent();
+    darkLight.begin();
+
+    var builder = LightSectionPool.builder();
+    var dark = LightSectionPool.dark();
+
+    for (int sector = lightSections.nextSetBit(0); sector >= 0; sector = lightSections.nextSetBit(sector + 1)) {
+      if (skyUpdates) builder.skyLight(sector, dark);
+      if (blockUpdates) builder.blockLight(sector, dark);
+    }
 
-      var lightData = new LightData(
-        true, // deprecated since 1.19.2
-        blockLightMask, skyLightMask,
-        new BitSet(), new BitSet(),
-        skyLightArray.size(), blockLightArray.size(),
-        skyLightArray.toArray(new byte[0][]),
-        blockLightArray.toArray(new byte[0][])
-      );
+    var packet = new WrapperPlayServerUpdateLight(chunkX, chunkZ, builder.build());
+    PacketEvents.getAPI().getPlayerManager().sendPacketSilently(player, packet);
+    Metrics.recordSynthetic(PacketType.Play.Server.UPDATE_LIGHT, 1);
 
-      var packet = new WrapperPlayServerUpdateLight(chunkCoords.x(), chunkCoords.y(), lightData);
-      PacketEvents.getAPI().getPlayerManager().sendPacketSilently(player, packet);
+    darkLight.end();
 
+    if (darkLight.shouldCommit()) {
+      darkLight.player = player.getName();
+      darkLight.chunkX = chunkX;
+      darkLight.chunkZ = chunkZ;
+      darkLight.sectionCount = lightSections.cardinality();
+      darkLight.skyLight = skyUpdates;
+      darkLight.blockLight = blockUpdates;
+      darkLight.commit();
     }
 
   }
 
+  /**
+   * Sends block light for some sections of a chunk, leaving sky light and every other section untouched.
+   * @param lightSections Indices into the light arrays, where index 0 is the section below the world
+   * @param blockLightArrays One array per set bit of {@code lightSections}, in ascending order
+   */
+  public static void sendBlockLight(Player player, int chunkX, int chunkZ, BitSet lightSections, byte[][] blockLightArrays) {
+
+    var builder = LightSectionPool.builder();
+
+    int arrayIndex = 0;
+    for (int index = lightSections.nextSetBit(0); index >= 0; index = lightSections.nextSetBit(index + 1))
+      builder.blockLight(index, LightSectionPool.intern(blockLightArrays[arrayIndex++]));
+
+    var lightData = builder.build();
+
+    var packet = new WrapperPlayServerUpdateLight(chunkX, chunkZ, lightData);
+    PacketEvents.getAPI().getPlayerManager().sendPacketSilently(player, packet);
+    Metrics.recordSynthetic(PacketType.Play.Server.UPDATE_LIGHT, 1);
+
+  }
+
 }
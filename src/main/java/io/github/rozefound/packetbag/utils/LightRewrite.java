@@ -0,0 +1,307 @@
+package io.github.rozefound.packetbag.utils;
+
+import com.github.retrooper.packetevents.manager.server.ServerVersion;
+import com.github.retrooper.packetevents.protocol.world.chunk.LightData;
+import io.netty.buffer.ByteBuf;
+
+import java.util.Arrays;
+
+/**
+ * Sky light suppression for outgoing light data, either on decoded {@link LightData}
+ * or directly on the serialized packet buffer.
+ * <p>
+ * The buffer path moves every section of the sky light mask into the empty sky light mask and
+ * drops the sky light arrays, compacting the packet in place. Since the result is never longer
+ * than the original, no decode, re-encode or new buffer is needed.
+ */
+public final class LightRewrite {
+
+  public enum Mode {
+    /** Keep the sky light arrays and fill them with zeros, like the client would receive from a dark world. */
+    ZERO_FILL,
+    /** Move the sky light sections into the empty mask and drop the arrays altogether. */
+    EMPTY_MASK
+  }
+
+  private LightRewrite() {}
+
+  public static void suppressSkyLight(LightData lightData, Mode mode) {
+
+    if (lightData == null) return;
+
+    switch (mode) {
+      case ZERO_FILL -> {
+
+        // Point every section at the shared dark one, so the decoded arrays can be collected before encoding
+        var skyLightArray = lightData.getSkyLightArray();
+        Arrays.fill(skyLightArray, LightSectionPool.dark());
+
+        lightData.setSkyLightArray(skyLightArray);
+
+      }
+      case EMPTY_MASK -> {
+
+        lightData.getEmptySkyLightMask().or(lightData.getSkyLightMask());
+        lightData.getSkyLightMask().clear();
+
+        lightData.setSkyLightCount(0);
+        lightData.setSkyLightArray(LightSectionPool.NO_SECTIONS);
+
+      }
+    }
+
+  }
+
+  /**
+   * Suppresses sky light directly in a serialized UPDATE_LIGHT payload.
+   * @param buffer The packet buffer, with the reader index at the start of the payload
+   * @return Whether the buffer was rewritten; {@code false} means the layout is not supported
+   */
+  public static boolean suppressUpdateLightInPlace(ByteBuf buffer, ServerVersion version) {
+
+    // The "trust edges" flag in front of the masks was removed in 1.20
+    if (version.isOlderThan(ServerVersion.V_1_20)) return false;
+
+    int index = buffer.readerIndex();
+
+    index = skipVarInt(buffer, index); // chunk x
+    index = skipVarInt(buffer, index); // chunk z
+
+    return suppressInPlace(buffer, index);
+
+  }
+
+  /**
+   * Reads the chunk position of a serialized UPDATE_LIGHT payload without consuming it.
+   * @return The position packed with {@link Chunk#getChunkKey(int, int)}
+   */
+  public static long readUpdateLightChunkKey(ByteBuf buffer) {
+    int index = buffer.readerIndex();
+    int chunkX = readVarInt(buffer, index);
+    int chunkZ = readVarInt(buffer, skipVarInt(buffer, index));
+    return Chunk.getChunkKey(chunkX, chunkZ);
+  }
+
+  /**
+   * Suppresses sky light directly in a serialized CHUNK_DATA payload.
+   * @param buffer The packet buffer, with the reader index at the start of the payload
+   * @return Whether the buffer was rewritten; {@code false} means the layout is not supported
+   */
+  public static boolean suppressChunkDataInPlace(ByteBuf buffer, ServerVersion version) {
+
+    // Older versions use named root tags for heightmaps and carry the "trust edges" flag
+    if (version.isOlderThan(ServerVersion.V_1_20_2)) return false;
+
+    int index = buffer.readerIndex() + 8; // chunk x and z
+
+    if (version.isNewerThanOrEquals(ServerVersion.V_1_21_5)) {
+
+      int heightmaps = readVarInt(buffer, index);
+      index = skipVarInt(buffer, index);
+
+      for (int i = 0; i < heightmaps; i++) {
+        index = skipVarInt(buffer, index); // heightmap type
+        int longs = readVarInt(buffer, index);
+        index = skipVarInt(buffer, index) + longs * Long.BYTES;
+      }
+
+    }
+    else index = skipAnonymousTag(buffer, index);
+
+    int dataSize = readVarInt(buffer, index);
+    index = skipVarInt(buffer, index) + dataSize;
+
+    int blockEntities = readVarInt(buffer, index);
+    index = skipVarInt(buffer, index);
+
+    for (int i = 0; i < blockEntities; i++) {
+      index += 1 + 2; // packed xz, y
+      index = skipVarInt(buffer, index); // block entity type
+      index = skipAnonymousTag(buffer, index);
+    }
+
+    return suppressInPlace(buffer, index);
+
+  }
+
+  /**
+   * Rewrites the light data starting at {@code start}, which runs to the end of the packet.
+   */
+  private static boolean suppressInPlace(ByteBuf buffer, int start) {
+
+    int end = buffer.writerIndex();
+    if (start >= end) return false;
+
+    int index = start;
+
+    long[] skyMask = readLongs(buffer, index);
+    index = skipBitSet(buffer, index);
+
+    if (skyMask.length == 0) return true; // nothing to suppress
+
+    int blockMaskStart = index;
+    index = skipBitSet(buffer, index);
+    int blockMaskEnd = index;
+
+    long[] emptySkyMask = readLongs(buffer, index);
+    index = skipBitSet(buffer, index);
+
+    int emptyBlockMaskStart = index;
+    index = skipBitSet(buffer, index);
+    int emptyBlockMaskEnd = index;
+
+    int skyArrays = readVarInt(buffer, index);
+    index = skipVarInt(buffer, index);
+
+    for (int i = 0; i < skyArrays; i++) {
+      int length = readVarInt(buffer, index);
+      index = skipVarInt(buffer, index) + length;
+    }
+
+    int blockArraysStart = index;
+
+    if (blockArraysStart > end) return false;
+
+    long[] mergedMask = Arrays.copyOf(emptySkyMask, Math.max(skyMask.length, emptySkyMask.length));
+    for (int i = 0; i < skyMask.length; i++)
+      mergedMask[i] |= skyMask[i];
+
+    // Every region is written at or below where it was read from, so copying forwards is safe
+    int writer = start;
+
+    writer = writeVarInt(buffer, writer, 0); // sky light mask
+    writer = copyForward(buffer, blockMaskStart, writer, blockMaskEnd - blockMaskStart);
+
+    writer = writeVarInt(buffer, writer, mergedMask.length);
+    for (long word : mergedMask) {
+      buffer.setLong(writer, word);
+      writer += Long.BYTES;
+    }
+
+    writer = copyForward(buffer, emptyBlockMaskStart, writer, emptyBlockMaskEnd - emptyBlockMaskStart);
+    writer = writeVarInt(buffer, writer, 0); // sky light arrays
+    writer = copyForward(buffer, blockArraysStart, writer, end - blockArraysStart);
+
+    buffer.writerIndex(writer);
+
+    return true;
+
+  }
+
+  private static long[] readLongs(ByteBuf buffer, int index) {
+
+    int length = readVarInt(buffer, index);
+    index = skipVarInt(buffer, index);
+
+    long[] words = new long[length];
+
+    for (int i = 0; i < length; i++)
+      words[i] = buffer.getLong(index + i * Long.BYTES);
+
+    return words;
+
+  }
+
+  private static int skipBitSet(ByteBuf buffer, int index) {
+    int length = readVarInt(buffer, index);
+    return skipVarInt(buffer, index) + length * Long.BYTES;
+  }
+
+  private static int copyForward(ByteBuf buffer, int from, int to, int length) {
+
+    if (from != to) {
+
+      int i = 0;
+
+      for (; i + Long.BYTES <= length; i += Long.BYTES)
+        buffer.setLong(to + i, buffer.getLong(from + i));
+
+      for (; i < length; i++)
+        buffer.setByte(to + i, buffer.getByte(from + i));
+
+    }
+
+    return to + length;
+
+  }
+
+  private static int readVarInt(ByteBuf buffer, int index) {
+
+    int value = 0;
+
+    for (int shift = 0; shift < 35; shift += 7) {
+      byte current = buffer.getByte(index++);
+      value |= (current & 0x7F) << shift;
+      if ((current & 0x80) == 0) return value;
+    }
+
+    throw new IllegalStateException("VarInt is too big");
+
+  }
+
+  private static int skipVarInt(ByteBuf buffer, int index) {
+    while ((buffer.getByte(index++) & 0x80) != 0);
+    return index;
+  }
+
+  private static int writeVarInt(ByteBuf buffer, int index, int value) {
+
+    while ((value & ~0x7F) != 0) {
+      buffer.setByte(index++, (value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+
+    buffer.setByte(index++, value);
+    return index;
+
+  }
+
+  /**
+   * Skips a network NBT tag without a root name, as used since 1.20.2.
+   */
+  private static int skipAnonymousTag(ByteBuf buffer, int index) {
+    byte type = buffer.getByte(index++);
+    return type == 0 ? index : skipTagPayload(buffer, index, type);
+  }
+
+  private static int skipTagPayload(ByteBuf buffer, int index, byte type) {
+
+    return switch (type) {
+      case 1 -> index + 1;
+      case 2 -> index + 2;
+      case 3, 5 -> index + 4;
+      case 4, 6 -> index + 8;
+      case 7 -> index + 4 + buffer.getInt(index);
+      case 8 -> index + 2 + buffer.getUnsignedShort(index);
+      case 9 -> {
+
+        byte elementType = buffer.getByte(index);
+        int length = buffer.getInt(index + 1);
+        index += 5;
+
+        for (int i = 0; i < length; i++)
+          index = skipTagPayload(buffer, index, elementType);
+
+        yield index;
+
+      }
+      case 10 -> {
+
+        byte entryType;
+
+        while ((entryType = buffer.getByte(index++)) != 0) {
+          index += 2 + buffer.getUnsignedShort(index); // entry name
+          index = skipTagPayload(buffer, index, entryType);
+        }
+
+        yield index;
+
+      }
+      case 11 -> index + 4 + buffer.getInt(index) * 4;
+      case 12 -> index + 4 + buffer.getInt(index) * 8;
+      default -> throw new IllegalStateException("Unknown NBT tag type " + type);
+    };
+
+  }
+
+}
@@ -0,0 +1,166 @@
+package io.github.rozefound.packetbag.utils;
+
+import com.github.retrooper.packetevents.protocol.world.chunk.LightData;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Shared light sections and reusable {@link LightData} for outgoing light packets.
+ * <p>
+ * The canonical sections hold one light level throughout and are shared by every packet that
+ * needs that level, so they must never be written to. Sections that may end up in a packet
+ * can be passed through {@link #intern(byte[])} to be swapped for the canonical copy.
+ */
+public final class LightSectionPool {
+
+  /** Sky and block light arrays of a packet that carries none. */
+  public static final byte[][] NO_SECTIONS = new byte[0][];
+
+  private static final byte[][] CONSTANT = new byte[16][];
+
+  static {
+    for (int level = 0; level < CONSTANT.length; level++) {
+      CONSTANT[level] = new byte[Light.SECTION_BYTES];
+      Light.fill(CONSTANT[level], level);
+    }
+  }
+
+  private static final ThreadLocal<Builder> BUILDERS = ThreadLocal.withInitial(Builder::new);
+
+  private LightSectionPool() {}
+
+  /**
+   * The shared section lit at {@code level} throughout. Must not be modified.
+   */
+  public static byte[] constant(int level) {
+    return CONSTANT[Math.max(0, Math.min(15, level))];
+  }
+
+  public static byte[] dark() {
+    return CONSTANT[0];
+  }
+
+  public static byte[] bright() {
+    return CONSTANT[15];
+  }
+
+  /**
+   * Returns the shared section when {@code section} holds a single level, or {@code section} itself otherwise.
+   */
+  public static byte[] intern(byte[] section) {
+    int level = Light.getUniformLevel(section);
+    return level < 0 ? section : CONSTANT[level];
+  }
+
+  /**
+   * The calling thread's builder, emptied. Only one packet can be built at a time per thread,
+   * and the built light data must be encoded before the builder is taken again. Sending the
+   * packet right away, as {@code sendPacketSilently} does, takes care of that.
+   */
+  public static Builder builder() {
+    var builder = BUILDERS.get();
+    builder.reset();
+    return builder;
+  }
+
+  /**
+   * Collects the sections of one light packet into a single {@link LightData} that is reused
+   * between packets, keeping allocation down to the final array of sections.
+   */
+  public static final class Builder {
+
+    private final BitSet skyLightMask = new BitSet();
+    private final BitSet blockLightMask = new BitSet();
+    private final BitSet emptySkyLightMask = new BitSet();
+    private final BitSet emptyBlockLightMask = new BitSet();
+
+    private final Sections skyLight = new Sections();
+    private final Sections blockLight = new Sections();
+
+    private final LightData lightData = new LightData(
+      true, // deprecated since 1.19.2
+      blockLightMask, skyLightMask,
+      emptyBlockLightMask, emptySkyLightMask,
+      0, 0,
+      NO_SECTIONS, NO_SECTIONS
+    );
+
+    private Builder() {}
+
+    /**
+     * Adds a sky light section. Sections of each layer have to be added in ascending index order.
+     * @param index Index into the light arrays, where index 0 is the section below the world
+     */
+    public Builder skyLight(int index, byte[] section) {
+      skyLightMask.set(index);
+      skyLight.add(section);
+      return this;
+    }
+
+    public Builder blockLight(int index, byte[] section) {
+      blockLightMask.set(index);
+      blockLight.add(section);
+      return this;
+    }
+
+    public Builder emptySkyLight(int index) {
+      emptySkyLightMask.set(index);
+      return this;
+    }
+
+    public Builder emptyBlockLight(int index) {
+      emptyBlockLightMask.set(index);
+      return this;
+    }
+
+    public LightData build() {
+
+      lightData.setSkyLightArray(skyLight.toArray());
+      lightData.setSkyLightCount(skyLight.size);
+      lightData.setBlockLightArray(blockLight.toArray());
+      lightData.setBlockLightCount(blockLight.size);
+
+      return lightData;
+
+    }
+
+    private void reset() {
+      skyLightMask.clear();
+      blockLightMask.clear();
+      emptySkyLightMask.clear();
+      emptyBlockLightMask.clear();
+      skyLight.clear();
+      blockLight.clear();
+    }
+
+  }
+
+  /**
+   * The sections of one light layer, growing as needed and never shrinking.
+   */
+  private static final class Sections {
+
+    private byte[][] sections = new byte[32][];
+    private int size;
+
+    private void add(byte[] section) {
+      if (size == sections.length) sections = Arrays.copyOf(sections, size << 1);
+      sections[size++] = section;
+    }
+
+    /**
+     * Drops the references too, so sections of the last packet are not kept alive.
+     */
+    private void clear() {
+      Arrays.fill(sections, 0, size, null);
+      size = 0;
+    }
+
+    private byte[][] toArray() {
+      return size == 0 ? NO_SECTIONS : Arrays.copyOf(sections, size);
+    }
+
+  }
+
+}
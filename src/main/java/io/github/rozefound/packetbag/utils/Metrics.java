@@ -0,0 +1,232 @@
+package io.github.rozefound.packetbag.utils;
+
+import com.github.retrooper.packetevents.protocol.packettype.PacketTypeCommon;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide counters and timings for packet interception, synthetic packets and the work
+ * behind them, cheap enough to stay on in production.
+ * <p>
+ * Recording never locks: counters are {@link LongAdder}s and histograms are fixed arrays of
+ * them, one per power of two. Reading is pull-style through {@link #snapshot()}, which is
+ * consistent per value but not across values.
+ */
+public final class Metrics {
+
+  public enum Direction { SEND, RECEIVE }
+
+  private static final Map<PacketTypeCommon, PacketStats> sent = new ConcurrentHashMap<>();
+  private static final Map<PacketTypeCommon, PacketStats> received = new ConcurrentHashMap<>();
+  private static final Map<PacketTypeCommon, LongAdder> synthetic = new ConcurrentHashMap<>();
+
+  private static final Map<String, Histogram> timers = new ConcurrentHashMap<>();
+
+  private static final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+  private static final Map<String, Supplier<Map<String, ? extends Number>>> gaugeGroups = new ConcurrentHashMap<>();
+
+  private Metrics() {}
+
+  /**
+   * Records one intercepted packet. Only packets the listener handles are recorded; those it
+   * lets straight through, such as any packet to a player without features, are not measured.
+   * @param bytes The payload size the listener saw
+   * @param nanos Time spent in the listener
+   */
+  public static void recordPacket(Direction direction, PacketTypeCommon type, int bytes, long nanos, boolean reEncoded) {
+
+    var stats = stats(direction == Direction.SEND ? sent : received, type);
+
+    stats.count.increment();
+    stats.bytes.add(bytes);
+    stats.latency.record(nanos);
+
+    if (reEncoded) stats.reEncoded.increment();
+
+  }
+
+  /**
+   * Records packets the plugin built and sent itself, which bypass the listener.
+   */
+  public static void recordSynthetic(PacketTypeCommon type, int count) {
+
+    var counter = synthetic.get(type);
+    if (counter == null) counter = synthetic.computeIfAbsent(type, key -> new LongAdder());
+
+    counter.add(count);
+
+  }
+
+  /**
+   * A named timing histogram, created on first use. Callers on hot paths should keep the result.
+   */
+  public static Histogram timer(String name) {
+    return timers.computeIfAbsent(name, key -> new Histogram());
+  }
+
+  public static void registerGauge(String name, LongSupplier value) {
+    gauges.put(name, value);
+  }
+
+  /**
+   * Registers a family of gauges read together, reported as {@code name.key} for every entry.
+   */
+  public static void registerGauges(String name, Supplier<Map<String, ? extends Number>> values) {
+    gaugeGroups.put(name, values);
+  }
+
+  public static void reset() {
+    sent.clear();
+    received.clear();
+    synthetic.clear();
+    timers.values().forEach(Histogram::reset);
+  }
+
+  public static Snapshot snapshot() {
+
+    var gaugeValues = new TreeMap<String, Long>();
+
+    gauges.forEach((name, value) -> gaugeValues.put(name, value.getAsLong()));
+    gaugeGroups.forEach((name, values) -> values.get().forEach((key, value) -> gaugeValues.put(name + "." + key, value.longValue())));
+
+    var syntheticCounts = new TreeMap<String, Long>();
+    synthetic.forEach((type, counter) -> syntheticCounts.put(nameOf(type), counter.sum()));
+
+    var timerSnapshots = new TreeMap<String, HistogramSnapshot>();
+    timers.forEach((name, histogram) -> timerSnapshots.put(name, histogram.snapshot()));
+
+    return new Snapshot(snapshot(sent), snapshot(received), syntheticCounts, timerSnapshots, gaugeValues);
+
+  }
+
+  /**
+   * Qualifies the type with its protocol state, since configuration and play share names.
+   */
+  private static String nameOf(PacketTypeCommon type) {
+    var typeClass = type instanceof Enum<?> constant ? constant.getDeclaringClass() : type.getClass();
+    var state = typeClass.getEnclosingClass();
+    return state == null ? type.getName() : state.getSimpleName() + "." + type.getName();
+  }
+
+  private static PacketStats stats(Map<PacketTypeCommon, PacketStats> map, PacketTypeCommon type) {
+    // A plain lookup first, computeIfAbsent locks its bin even when the key is present
+    var stats = map.get(type);
+    return stats != null ? stats : map.computeIfAbsent(type, key -> new PacketStats());
+  }
+
+  private static Map<String, PacketSnapshot> snapshot(Map<PacketTypeCommon, PacketStats> map) {
+
+    var result = new TreeMap<String, PacketSnapshot>();
+
+    map.forEach((type, stats) -> result.put(nameOf(type),
+      new PacketSnapshot(stats.count.sum(), stats.reEncoded.sum(), stats.bytes.sum(), stats.latency.snapshot())));
+
+    return result;
+
+  }
+
+  private static final class PacketStats {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder reEncoded = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final Histogram latency = new Histogram();
+  }
+
+  /**
+   * A histogram of non-negative values, usually nanoseconds, in power of two buckets.
+   * Percentiles are reported as the upper bound of their bucket, so they are accurate to a factor of two.
+   */
+  public static final class Histogram {
+
+    private final LongAdder[] buckets = new LongAdder[64];
+    private final LongAdder sum = new LongAdder();
+
+    private Histogram() {
+      for (int i = 0; i < buckets.length; i++)
+        buckets[i] = new LongAdder();
+    }
+
+    public void record(long value) {
+      value = Math.max(0, value);
+      buckets[63 - Long.numberOfLeadingZeros(value | 1)].increment();
+      sum.add(value);
+    }
+
+    /**
+     * Records the time since {@code startNanos}, taken from {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+      record(System.nanoTime() - startNanos);
+    }
+
+    private void reset() {
+      for (var bucket : buckets) bucket.reset();
+      sum.reset();
+    }
+
+    private HistogramSnapshot snapshot() {
+
+      long[] counts = new long[buckets.length];
+      long count = 0;
+
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] = buckets[i].sum();
+        count += counts[i];
+      }
+
+      return new HistogramSnapshot(count, sum.sum(), counts);
+
+    }
+
+  }
+
+  /**
+   * @param buckets Bucket {@code i} counts the values from {@code 2^i} up to {@code 2^(i+1) - 1}; bucket 0 also counts zero
+   */
+  public record HistogramSnapshot(long count, long sum, long[] buckets) {
+
+    public double mean() {
+      return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @param quantile Between 0 and 1
+     * @return The upper bound of the bucket holding the quantile, or 0 when nothing was recorded
+     */
+    public long percentile(double quantile) {
+
+      if (count == 0) return 0;
+
+      long rank = Math.max(1, (long) Math.ceil(quantile * count));
+      long seen = 0;
+
+      for (int i = 0; i < buckets.length; i++) {
+        seen += buckets[i];
+        if (seen >= rank) return i >= 62 ? Long.MAX_VALUE : (2L << i) - 1;
+      }
+
+      return Long.MAX_VALUE;
+
+    }
+
+  }
+
+  public record PacketSnapshot(long count, long reEncoded, long bytes, HistogramSnapshot latency) {}
+
+  /**
+   * Every metric at one point in time, keyed by name in sorted order.
+   */
+  public record Snapshot(
+    Map<String, PacketSnapshot> sent,
+    Map<String, PacketSnapshot> received,
+    Map<String, Long> synthetic,
+    Map<String, HistogramSnapshot> timers,
+    Map<String, Long> gauges
+  ) {}
+
+}
@@ -0,0 +1,222 @@
+package io.github.rozefound.packetbag.utils;
+
+import org.bukkit.block.data.BlockData;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Block states for one 16x16x16 section, stored the way Minecraft's paletted containers do:
+ * a palette of the distinct states in the section and one bit-packed palette index per block.
+ * <p>
+ * Palette entry 0 means "no block", so a section holding a single state costs one bit per
+ * block. The bit width grows with the palette, after first dropping entries nothing refers to
+ * anymore. Indices never straddle two longs, like {@code SimpleBitStorage}.
+ * Blocks are indexed as {@code y * 256 + z * 16 + x}, the light array layout.
+ */
+public final class PalettedSection {
+
+  public static final int SIZE = 4096;
+
+  @FunctionalInterface
+  public interface Visitor {
+    void accept(int index, int state);
+  }
+
+  private final List<BlockData> palette = new ArrayList<>(4);
+
+  private long[] data;
+  private int bits;
+  private int valuesPerLong;
+  private long valueMask;
+
+  private int count;
+
+  public PalettedSection() {
+    palette.add(null);
+    allocate(1);
+  }
+
+  public static int index(int x, int y, int z) {
+    return (y & 15) << 8 | (z & 15) << 4 | (x & 15);
+  }
+
+  /**
+   * @return How many blocks are set
+   */
+  public int size() {
+    return count;
+  }
+
+  public boolean isEmpty() {
+    return count == 0;
+  }
+
+  public BlockData get(int index) {
+    return palette.get(getState(index));
+  }
+
+  /**
+   * @return The palette index stored for the block, 0 when it is not set
+   */
+  public int getState(int index) {
+    return (int) (data[index / valuesPerLong] >>> (index % valuesPerLong) * bits & valueMask);
+  }
+
+  /**
+   * Sets a block, or clears it when {@code blockData} is {@code null}.
+   * @return The previous block, or {@code null} if it was not set
+   */
+  public BlockData set(int index, BlockData blockData) {
+
+    int state = blockData == null ? 0 : paletteIndex(blockData);
+    int previous = getState(index);
+
+    if (previous == state) return palette.get(previous);
+
+    // Growing the palette may have repacked the data, but never changes what is stored at an index
+    setState(index, state);
+
+    if (previous == 0) count++;
+    else if (state == 0) count--;
+
+    return palette.get(previous);
+
+  }
+
+  public int getPaletteSize() {
+    return palette.size();
+  }
+
+  /**
+   * @return The state for a palette index, {@code null} for index 0
+   */
+  public BlockData getPaletteEntry(int state) {
+    return palette.get(state);
+  }
+
+  /**
+   * Visits every set block. Skips whole longs with nothing in them, so sparse sections are cheap to walk.
+   */
+  public void forEach(Visitor visitor) {
+
+    if (count == 0) return;
+
+    for (int word = 0; word < data.length; word++) {
+
+      long value = data[word];
+      if (value == 0) continue;
+
+      int base = word * valuesPerLong;
+      int end = Math.min(valuesPerLong, SIZE - base);
+
+      for (int i = 0; i < end; i++, value >>>= bits) {
+        int state = (int) (value & valueMask);
+        if (state != 0) visitor.accept(base + i, state);
+      }
+
+    }
+
+  }
+
+  /**
+   * Visits the set blocks inside a box, given in section-local coordinates, both ends inclusive.
+   */
+  public void forEachInBox(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, Visitor visitor) {
+
+    if (count == 0) return;
+
+    for (int y = minY; y <= maxY; y++)
+      for (int z = minZ; z <= maxZ; z++)
+        for (int x = minX; x <= maxX; x++) {
+          int index = y << 8 | z << 4 | x;
+          int state = getState(index);
+          if (state != 0) visitor.accept(index, state);
+        }
+
+  }
+
+  /**
+   * @return A rough heap footprint in bytes, for budgeting
+   */
+  public long estimatedBytes() {
+    // Object headers and the palette list, plus the arrays behind them
+    return 96 + data.length * 8L + palette.size() * 4L;
+  }
+
+  private void setState(int index, int state) {
+    int word = index / valuesPerLong;
+    int shift = (index % valuesPerLong) * bits;
+    data[word] = data[word] & ~(valueMask << shift) | (long) state << shift;
+  }
+
+  private int paletteIndex(BlockData blockData) {
+
+    for (int i = 1; i < palette.size(); i++) {
+      var entry = palette.get(i);
+      if (entry == blockData || entry != null && entry.equals(blockData)) return i;
+    }
+
+    int free = freeEntry();
+
+    if (free < 0 && palette.size() > valueMask) {
+      compact();
+      free = freeEntry();
+      if (free < 0 && palette.size() > valueMask) allocate(bits + 1);
+    }
+
+    if (free > 0) {
+      palette.set(free, blockData);
+      return free;
+    }
+
+    palette.add(blockData);
+    return palette.size() - 1;
+
+  }
+
+  private int freeEntry() {
+    for (int i = 1; i < palette.size(); i++)
+      if (palette.get(i) == null) return i;
+    return -1;
+  }
+
+  /**
+   * Frees palette entries no block refers to, so they can be handed out again.
+   */
+  private void compact() {
+
+    boolean[] used = new boolean[palette.size()];
+    forEach((index, state) -> used[state] = true);
+
+    for (int i = 1; i < used.length; i++)
+      if (!used[i]) palette.set(i, null);
+
+    // Trailing free entries can go, which may let the next state fit without growing
+    while (palette.size() > 1 && palette.get(palette.size() - 1) == null)
+      palette.remove(palette.size() - 1);
+
+  }
+
+  private void allocate(int newBits) {
+
+    var oldData = data;
+    int oldBits = bits;
+    int oldValuesPerLong = valuesPerLong;
+    long oldMask = valueMask;
+
+    bits = newBits;
+    valuesPerLong = 64 / newBits;
+    valueMask = (1L << newBits) - 1;
+    data = new long[(SIZE + valuesPerLong - 1) / valuesPerLong];
+
+    if (oldData == null || count == 0) return;
+
+    for (int index = 0; index < SIZE; index++) {
+      int state = (int) (oldData[index / oldValuesPerLong] >>> (index % oldValuesPerLong) * oldBits & oldMask);
+      if (state != 0) setState(index, state);
+    }
+
+  }
+
+}
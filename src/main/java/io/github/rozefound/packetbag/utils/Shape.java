@@ -4,13 +4,13 @@ import org.bukkit.Location;
 import org.bukkit.World;
 import org.bukkit.block.data.BlockData;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * A utility class to generate blueprints for geometric shapes.
- * Each method returns a Map of Locations to BlockData, perfect for sending
+ * Each method returns a {@link BlockMap} of packed block positions, perfect for sending
  * fake blocks to players without modifying the world.
+ * <p>
+ * Shapes are described as {@link Volume}s and rasterized section by section, so only the
+ * sections their shell passes through are scanned.
  */
 public final class Shape {
 
@@ -22,87 +22,51 @@ public final class Shape {
     DOME
   }
 
-  public static Map<Location, BlockData> drawPlatform(Location center, int size, BlockData blockData) {
-    Map<Location, BlockData> blocks = new HashMap<>();
+  public static BlockMap drawPlatform(Location center, int size, BlockData blockData) {
+
+    int centerX = center.getBlockX();
+    int centerY = center.getBlockY();
+    int centerZ = center.getBlockZ();
+
+    var platform = Volume.box(centerX - size, centerY, centerZ - size, centerX + size, centerY, centerZ + size);
+    return ShapeRasterizer.rasterize(platform, ShapeRasterizer.Mode.FILL, blockData);
 
-    for (int x = -size; x <= size; x++) {
-      for (int z = -size; z <= size; z++) {
-        Location loc = center.clone().add(x, 0, z);
-        blocks.put(loc, blockData);
-      }
-    }
-    return blocks;
   }
 
-  public static Map<Location, BlockData> drawCube(Location center, int size, BlockData blockData) {
-    Map<Location, BlockData> blocks = new HashMap<>();
-    World world = center.getWorld();
+  public static BlockMap drawCube(Location center, int size, BlockData blockData) {
 
     int centerX = center.getBlockX();
     int centerY = center.getBlockY();
     int centerZ = center.getBlockZ();
 
-    for (int x = -size; x <= size; x++) {
-      for (int y = -size; y <= size; y++) {
-        for (int z = -size; z <= size; z++) {
-          if (Math.abs(x) == size || Math.abs(y) == size || Math.abs(z) == size) {
-            Location loc = new Location(world, centerX + x, centerY + y, centerZ + z);
-            blocks.put(loc, blockData);
-          }
-        }
-      }
-    }
-    return blocks;
+    var outer = Volume.box(centerX - size, centerY - size, centerZ - size, centerX + size, centerY + size, centerZ + size);
+    var inner = Volume.box(centerX - size + 1, centerY - size + 1, centerZ - size + 1, centerX + size - 1, centerY + size - 1, centerZ + size - 1);
+
+    return ShapeRasterizer.rasterize(outer.difference(inner), ShapeRasterizer.Mode.FILL, blockData);
+
   }
 
-  public static Map<Location, BlockData> drawSphere(Location center, int radius, BlockData blockData) {
-    Map<Location, BlockData> blocks = new HashMap<>();
-    int radiusSquared = radius * radius;
-
-    for (int x = -radius; x <= radius; x++) {
-      for (int y = -radius; y <= radius; y++) {
-        for (int z = -radius; z <= radius; z++) {
-          int distanceSquared = (x * x) + (y * y) + (z * z);
-
-          if (distanceSquared > (radius - 1) * (radius - 1) && distanceSquared <= radiusSquared) {
-            Location loc = center.clone().add(x, y, z);
-            blocks.put(loc, blockData);
-          }
-        }
-      }
-    }
-    return blocks;
+  public static BlockMap drawSphere(Location center, int radius, BlockData blockData) {
+    return ShapeRasterizer.rasterize(sphereShell(center, radius), ShapeRasterizer.Mode.FILL, blockData);
   }
 
-  public static Map<Location, BlockData> drawCylinder(Location center, int radius, int height, BlockData blockData) {
-    Map<Location, BlockData> blocks = new HashMap<>();
-    int radiusSquared = radius * radius;
-
-    for (int y = 0; y < height; y++) {
-      for (int x = -radius; x <= radius; x++) {
-        for (int z = -radius; z <= radius; z++) {
-          int distanceSquaredXZ = (x * x) + (z * z);
-
-          if (y == 0 || y == height - 1) {
-            if (distanceSquaredXZ <= radiusSquared) {
-              blocks.put(center.clone().add(x, y, z), blockData);
-            }
-          }
-          else {
-            if (distanceSquaredXZ > (radius - 1) * (radius - 1) && distanceSquaredXZ <= radiusSquared) {
-              blocks.put(center.clone().add(x, y, z), blockData);
-            }
-          }
-        }
-      }
-    }
-    return blocks;
+  public static BlockMap drawCylinder(Location center, int radius, int height, BlockData blockData) {
+
+    int centerX = center.getBlockX();
+    int centerY = center.getBlockY();
+    int centerZ = center.getBlockZ();
+
+    // Full discs on the bottom and top layers, a one block thick wall in between
+    var outer = Volume.cylinder(centerX, centerZ, radius * radius, centerY, centerY + height - 1);
+    var inner = Volume.cylinder(centerX, centerZ, (radius - 1) * (radius - 1), centerY + 1, centerY + height - 2);
+
+    return ShapeRasterizer.rasterize(outer.difference(inner), ShapeRasterizer.Mode.FILL, blockData);
+
   }
 
-  public static Map<Location, BlockData> drawWorldCylinder(Location center, int radius, BlockData blockData) {
-    Map<Location, BlockData> blocks = new HashMap<>();
+  public static BlockMap drawWorldCylinder(Location center, int radius, BlockData blockData) {
+
     World world = center.getWorld();
-    int radiusSquared = radius * radius;
 
     int centerX = center.getBlockX();
     int centerZ = center.getBlockZ();
@@ -110,45 +74,36 @@ public final class Shape {
     int minY = world.getMinHeight();
     int maxY = center.getBlockY() + 100;
 
-    for (int x = -radius; x <= radius; x++) {
-      for (int z = -radius; z <= radius; z++) {
-
-        int distanceSquaredXZ = (x * x) + (z * z);
-
-        if (distanceSquaredXZ <= radiusSquared) {
-          Location topCapLoc = new Location(world, centerX + x, maxY, centerZ + z);
-          Location bottomCapLoc = new Location(world, centerX + x, minY, centerZ + z);
-          blocks.put(topCapLoc, blockData);
-          blocks.put(bottomCapLoc, blockData);
-        }
-
-        if (distanceSquaredXZ > (radius - 1) * (radius - 1) && distanceSquaredXZ <= radiusSquared) {
-          for (int y = minY + 1; y < maxY; y++) {
-            Location wallLoc = new Location(world, centerX + x, y, centerZ + z);
-            blocks.put(wallLoc, blockData);
-          }
-        }
-      }
-    }
-    return blocks;
+    var outer = Volume.cylinder(centerX, centerZ, radius * radius, minY, maxY);
+    var inner = Volume.cylinder(centerX, centerZ, (radius - 1) * (radius - 1), minY + 1, maxY - 1);
+
+    return ShapeRasterizer.rasterize(outer.difference(inner), ShapeRasterizer.Mode.FILL, blockData);
+
   }
 
-  public static Map<Location, BlockData> drawDome(Location center, int radius, BlockData blockData) {
-    Map<Location, BlockData> blocks = new HashMap<>();
-    int radiusSquared = radius * radius;
-
-    for (int x = -radius; x <= radius; x++) {
-      for (int y = 0; y <= radius; y++) {
-        for (int z = -radius; z <= radius; z++) {
-          int distanceSquared = (x * x) + (y * y) + (z * z);
-
-          if (distanceSquared > (radius - 1) * (radius - 1) && distanceSquared <= radiusSquared) {
-            Location loc = center.clone().add(x, y, z);
-            blocks.put(loc, blockData);
-          }
-        }
-      }
-    }
-    return blocks;
+  public static BlockMap drawDome(Location center, int radius, BlockData blockData) {
+
+    int centerX = center.getBlockX();
+    int centerY = center.getBlockY();
+    int centerZ = center.getBlockZ();
+
+    var upperHalf = Volume.box(centerX - radius, centerY, centerZ - radius, centerX + radius, centerY + radius, centerZ + radius);
+    return ShapeRasterizer.rasterize(sphereShell(center, radius).intersection(upperHalf), ShapeRasterizer.Mode.FILL, blockData);
+
   }
+
+  /**
+   * The positions more than {@code radius - 1} but at most {@code radius} away from the centre.
+   */
+  private static Volume sphereShell(Location center, int radius) {
+
+    int centerX = center.getBlockX();
+    int centerY = center.getBlockY();
+    int centerZ = center.getBlockZ();
+
+    return Volume.ball(centerX, centerY, centerZ, radius * radius)
+      .difference(Volume.ball(centerX, centerY, centerZ, (radius - 1) * (radius - 1)));
+
+  }
+
 }
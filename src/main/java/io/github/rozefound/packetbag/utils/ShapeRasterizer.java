@@ -0,0 +1,263 @@
+package io.github.rozefound.packetbag.utils;
+
+import org.bukkit.block.data.BlockData;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Turns a {@link Volume} into block positions, one chunk section at a time.
+ * <p>
+ * Sections are classified against the volume before any block is tested, so the work is
+ * proportional to the sections the volume's edge passes through rather than to its bounding
+ * box. Above {@link #PARALLEL_SECTIONS} candidate sections the sections are rasterized on the
+ * common fork-join pool; the results are still delivered in order on the calling thread.
+ * <p>
+ * Interrupting the calling thread stops the work at the next section, on the pool as well,
+ * and throws a {@link CancellationException}.
+ */
+public final class ShapeRasterizer {
+
+  public enum Mode {
+    /** Every position of the volume. */
+    FILL,
+    /** Only positions of the volume with at least one face touching a position outside of it. */
+    SURFACE
+  }
+
+  @FunctionalInterface
+  public interface SectionVisitor {
+    /**
+     * @param blockKeys Packed block positions, only the first {@code count} are valid and
+     *                  the array may be reused once the call returns
+     */
+    void accept(long sectionKey, long[] blockKeys, int count);
+  }
+
+  private static final int PARALLEL_SECTIONS = 64;
+  private static final int SECTIONS_PER_TASK = 4;
+
+  private static final Metrics.Histogram RASTERIZE_TIME = Metrics.timer("shape.rasterize");
+
+  // Pooled rather than per thread: shapes are built on virtual threads, which rarely live to build a second one
+  private static final BlockingQueue<long[]> sectionBuffers = new ArrayBlockingQueue<>(Math.max(4, Runtime.getRuntime().availableProcessors()));
+
+  private ShapeRasterizer() {}
+
+  public static BlockMap rasterize(Volume volume, Mode mode, BlockData blockData) {
+
+    long start = System.nanoTime();
+
+    var sections = new ArrayList<long[]>();
+    int[] total = { 0 };
+
+    // Collecting first lets the map be sized once instead of rehashing as it fills up
+    rasterize(volume, mode, (sectionKey, blockKeys, count) -> {
+      sections.add(Arrays.copyOf(blockKeys, count));
+      total[0] += count;
+    });
+
+    var blocks = new BlockMap(total[0]);
+
+    if (total[0] > 0) {
+
+      int state = blocks.addPaletteEntry(blockData);
+
+      for (var blockKeys : sections)
+        for (long key : blockKeys)
+          blocks.putState(key, state);
+
+    }
+
+    RASTERIZE_TIME.recordSince(start);
+
+    return blocks;
+
+  }
+
+  public static void rasterize(Volume volume, Mode mode, SectionVisitor visitor) {
+
+    var bounds = volume.bounds();
+    if (bounds.isEmpty()) return;
+
+    int minSectionX = bounds.minX() >> 4, maxSectionX = bounds.maxX() >> 4;
+    int minSectionY = bounds.minY() >> 4, maxSectionY = bounds.maxY() >> 4;
+    int minSectionZ = bounds.minZ() >> 4, maxSectionZ = bounds.maxZ() >> 4;
+
+    int sizeX = maxSectionX - minSectionX + 1;
+    int sizeZ = maxSectionZ - minSectionZ + 1;
+    int sections = sizeX * sizeZ * (maxSectionY - minSectionY + 1);
+
+    var caller = Thread.currentThread();
+
+    if (sections < PARALLEL_SECTIONS) {
+
+      var buffer = acquireBuffer();
+
+      try {
+        for (int sectionY = minSectionY; sectionY <= maxSectionY; sectionY++)
+          for (int sectionZ = minSectionZ; sectionZ <= maxSectionZ; sectionZ++)
+            for (int sectionX = minSectionX; sectionX <= maxSectionX; sectionX++) {
+
+              checkCancelled(caller);
+
+              int count = rasterizeSection(volume, mode, bounds, sectionX, sectionY, sectionZ, buffer);
+
+              if (count > 0)
+                visitor.accept(Chunk.getSectionKey(sectionX, sectionY, sectionZ), buffer, count);
+
+            }
+      }
+      finally {
+        releaseBuffer(buffer);
+      }
+
+      return;
+
+    }
+
+    long[][] results = new long[sections][];
+
+    ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+
+      @Override
+      protected void compute() {
+        rasterizeRange(0, sections);
+      }
+
+      private void rasterizeRange(int from, int to) {
+
+        if (to - from > SECTIONS_PER_TASK) {
+
+          int middle = (from + to) >>> 1;
+
+          invokeAll(
+            new RecursiveAction() { protected void compute() { rasterizeRange(from, middle); } },
+            new RecursiveAction() { protected void compute() { rasterizeRange(middle, to); } });
+
+          return;
+
+        }
+
+        var buffer = acquireBuffer();
+
+        try {
+          for (int index = from; index < to; index++) {
+
+            // Pool threads are never interrupted themselves, so they watch the thread that asked for the work
+            checkCancelled(caller);
+
+            int sectionX = minSectionX + index % sizeX;
+            int sectionZ = minSectionZ + (index / sizeX) % sizeZ;
+            int sectionY = minSectionY + index / (sizeX * sizeZ);
+
+            int count = rasterizeSection(volume, mode, bounds, sectionX, sectionY, sectionZ, buffer);
+            if (count > 0) results[index] = Arrays.copyOf(buffer, count);
+
+          }
+        }
+        finally {
+          releaseBuffer(buffer);
+        }
+
+      }
+
+    });
+
+    checkCancelled(caller);
+
+    for (int index = 0; index < sections; index++) {
+
+      var blockKeys = results[index];
+      if (blockKeys == null) continue;
+
+      int sectionX = minSectionX + index % sizeX;
+      int sectionZ = minSectionZ + (index / sizeX) % sizeZ;
+      int sectionY = minSectionY + index / (sizeX * sizeZ);
+
+      visitor.accept(Chunk.getSectionKey(sectionX, sectionY, sectionZ), blockKeys, blockKeys.length);
+
+    }
+
+  }
+
+  private static void checkCancelled(Thread caller) {
+    if (caller.isInterrupted()) throw new CancellationException("Rasterization was interrupted");
+  }
+
+  private static long[] acquireBuffer() {
+    var buffer = sectionBuffers.poll();
+    return buffer != null ? buffer : new long[PalettedSection.SIZE];
+  }
+
+  private static void releaseBuffer(long[] buffer) {
+    sectionBuffers.offer(buffer);
+  }
+
+  /**
+   * Writes the matching positions of one section into {@code buffer}.
+   * @return The number of positions written
+   */
+  private static int rasterizeSection(Volume volume, Mode mode, Volume.Bounds bounds, int sectionX, int sectionY, int sectionZ, long[] buffer) {
+
+    int minX = Math.max(sectionX << 4, bounds.minX()), maxX = Math.min((sectionX << 4) + 15, bounds.maxX());
+    int minY = Math.max(sectionY << 4, bounds.minY()), maxY = Math.min((sectionY << 4) + 15, bounds.maxY());
+    int minZ = Math.max(sectionZ << 4, bounds.minZ()), maxZ = Math.min((sectionZ << 4) + 15, bounds.maxZ());
+
+    int count = 0;
+
+    if (mode == Mode.FILL) {
+
+      var coverage = volume.classify(minX, minY, minZ, maxX, maxY, maxZ);
+      if (coverage == Volume.Coverage.OUTSIDE) return 0;
+
+      for (int y = minY; y <= maxY; y++)
+        for (int z = minZ; z <= maxZ; z++) {
+
+          // Thin shells leave most rows of a partial section entirely in or out
+          var rowCoverage = coverage == Volume.Coverage.INSIDE ? coverage : volume.classify(minX, y, z, maxX, y, z);
+          if (rowCoverage == Volume.Coverage.OUTSIDE) continue;
+
+          boolean inside = rowCoverage == Volume.Coverage.INSIDE;
+
+          for (int x = minX; x <= maxX; x++)
+            if (inside || volume.contains(x, y, z))
+              buffer[count++] = BlockKey.pack(x, y, z);
+
+        }
+
+      return count;
+
+    }
+
+    // A surface position needs a neighbour outside, so the box grown by one has to straddle the edge
+    var coverage = volume.classify(minX - 1, minY - 1, minZ - 1, maxX + 1, maxY + 1, maxZ + 1);
+    if (coverage != Volume.Coverage.PARTIAL) return 0;
+
+    for (int y = minY; y <= maxY; y++)
+      for (int z = minZ; z <= maxZ; z++) {
+
+        if (volume.classify(minX - 1, y - 1, z - 1, maxX + 1, y + 1, z + 1) != Volume.Coverage.PARTIAL) continue;
+
+        for (int x = minX; x <= maxX; x++)
+          if (volume.contains(x, y, z) && isOnSurface(volume, x, y, z))
+            buffer[count++] = BlockKey.pack(x, y, z);
+
+      }
+
+    return count;
+
+  }
+
+  private static boolean isOnSurface(Volume volume, int x, int y, int z) {
+    return !volume.contains(x - 1, y, z) || !volume.contains(x + 1, y, z)
+      || !volume.contains(x, y - 1, z) || !volume.contains(x, y + 1, z)
+      || !volume.contains(x, y, z - 1) || !volume.contains(x, y, z + 1);
+  }
+
+}
@@ -0,0 +1,282 @@
+package io.github.rozefound.packetbag.utils;
+
+/**
+ * A solid region of block positions, described by membership rather than by a list of blocks.
+ * <p>
+ * Besides testing single positions, a volume can classify a whole box at once, which lets
+ * {@link ShapeRasterizer} skip sections that are entirely inside or outside of it. Combining
+ * volumes with {@link #union}, {@link #difference} and {@link #intersection} is free: the
+ * result only references its operands and evaluates them on demand.
+ */
+public interface Volume {
+
+  enum Coverage {
+    /** No position of the box belongs to the volume. */
+    OUTSIDE,
+    /** Some positions of the box may belong to the volume. */
+    PARTIAL,
+    /** Every position of the box belongs to the volume. */
+    INSIDE
+  }
+
+  /**
+   * An inclusive box of block positions, empty when any minimum exceeds its maximum.
+   */
+  record Bounds(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+
+    public boolean isEmpty() {
+      return minX > maxX || minY > maxY || minZ > maxZ;
+    }
+
+    public Bounds union(Bounds other) {
+      if (isEmpty()) return other;
+      if (other.isEmpty()) return this;
+      return new Bounds(Math.min(minX, other.minX), Math.min(minY, other.minY), Math.min(minZ, other.minZ),
+        Math.max(maxX, other.maxX), Math.max(maxY, other.maxY), Math.max(maxZ, other.maxZ));
+    }
+
+    public Bounds intersection(Bounds other) {
+      return new Bounds(Math.max(minX, other.minX), Math.max(minY, other.minY), Math.max(minZ, other.minZ),
+        Math.min(maxX, other.maxX), Math.min(maxY, other.maxY), Math.min(maxZ, other.maxZ));
+    }
+
+  }
+
+  boolean contains(int x, int y, int z);
+
+  /**
+   * The smallest box holding every position of the volume.
+   */
+  Bounds bounds();
+
+  /**
+   * Classifies an inclusive box against the volume. The answer may be {@link Coverage#PARTIAL}
+   * for a box that is actually fully inside or outside, but never the other way around.
+   */
+  Coverage classify(int minX, int minY, int minZ, int maxX, int maxY, int maxZ);
+
+  default Volume union(Volume other) {
+
+    var self = this;
+
+    return new Volume() {
+
+      @Override
+      public boolean contains(int x, int y, int z) {
+        return self.contains(x, y, z) || other.contains(x, y, z);
+      }
+
+      @Override
+      public Bounds bounds() {
+        return self.bounds().union(other.bounds());
+      }
+
+      @Override
+      public Coverage classify(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+
+        var first = self.classify(minX, minY, minZ, maxX, maxY, maxZ);
+        if (first == Coverage.INSIDE) return Coverage.INSIDE;
+
+        var second = other.classify(minX, minY, minZ, maxX, maxY, maxZ);
+        if (second == Coverage.INSIDE) return Coverage.INSIDE;
+
+        return first == Coverage.OUTSIDE && second == Coverage.OUTSIDE ? Coverage.OUTSIDE : Coverage.PARTIAL;
+
+      }
+
+    };
+
+  }
+
+  default Volume difference(Volume other) {
+
+    var self = this;
+
+    return new Volume() {
+
+      @Override
+      public boolean contains(int x, int y, int z) {
+        return self.contains(x, y, z) && !other.contains(x, y, z);
+      }
+
+      @Override
+      public Bounds bounds() {
+        return self.bounds();
+      }
+
+      @Override
+      public Coverage classify(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+
+        var first = self.classify(minX, minY, minZ, maxX, maxY, maxZ);
+        if (first == Coverage.OUTSIDE) return Coverage.OUTSIDE;
+
+        var second = other.classify(minX, minY, minZ, maxX, maxY, maxZ);
+        if (second == Coverage.INSIDE) return Coverage.OUTSIDE;
+
+        return first == Coverage.INSIDE && second == Coverage.OUTSIDE ? Coverage.INSIDE : Coverage.PARTIAL;
+
+      }
+
+    };
+
+  }
+
+  default Volume intersection(Volume other) {
+
+    var self = this;
+
+    return new Volume() {
+
+      @Override
+      public boolean contains(int x, int y, int z) {
+        return self.contains(x, y, z) && other.contains(x, y, z);
+      }
+
+      @Override
+      public Bounds bounds() {
+        return self.bounds().intersection(other.bounds());
+      }
+
+      @Override
+      public Coverage classify(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+
+        var first = self.classify(minX, minY, minZ, maxX, maxY, maxZ);
+        if (first == Coverage.OUTSIDE) return Coverage.OUTSIDE;
+
+        var second = other.classify(minX, minY, minZ, maxX, maxY, maxZ);
+        if (second == Coverage.OUTSIDE) return Coverage.OUTSIDE;
+
+        return first == Coverage.INSIDE && second == Coverage.INSIDE ? Coverage.INSIDE : Coverage.PARTIAL;
+
+      }
+
+    };
+
+  }
+
+  /**
+   * Every position within the squared distance of the centre, which keeps the integer
+   * radius comparisons of the original shapes exact.
+   */
+  static Volume ball(int centerX, int centerY, int centerZ, int radiusSquared) {
+
+    int radius = ceilSqrt(radiusSquared);
+    var bounds = new Bounds(centerX - radius, centerY - radius, centerZ - radius, centerX + radius, centerY + radius, centerZ + radius);
+
+    return new Volume() {
+
+      @Override
+      public boolean contains(int x, int y, int z) {
+        int dx = x - centerX, dy = y - centerY, dz = z - centerZ;
+        return dx * dx + dy * dy + dz * dz <= radiusSquared;
+      }
+
+      @Override
+      public Bounds bounds() {
+        return bounds;
+      }
+
+      @Override
+      public Coverage classify(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+
+        long near = square(nearest(centerX, minX, maxX)) + square(nearest(centerY, minY, maxY)) + square(nearest(centerZ, minZ, maxZ));
+        if (near > radiusSquared) return Coverage.OUTSIDE;
+
+        long far = square(farthest(centerX, minX, maxX)) + square(farthest(centerY, minY, maxY)) + square(farthest(centerZ, minZ, maxZ));
+        return far <= radiusSquared ? Coverage.INSIDE : Coverage.PARTIAL;
+
+      }
+
+    };
+
+  }
+
+  /**
+   * A vertical cylinder spanning {@code minY} to {@code maxY} inclusive.
+   */
+  static Volume cylinder(int centerX, int centerZ, int radiusSquared, int minY, int maxY) {
+
+    int radius = ceilSqrt(radiusSquared);
+    var bounds = new Bounds(centerX - radius, minY, centerZ - radius, centerX + radius, maxY, centerZ + radius);
+
+    return new Volume() {
+
+      @Override
+      public boolean contains(int x, int y, int z) {
+        int dx = x - centerX, dz = z - centerZ;
+        return y >= minY && y <= maxY && dx * dx + dz * dz <= radiusSquared;
+      }
+
+      @Override
+      public Bounds bounds() {
+        return bounds;
+      }
+
+      @Override
+      public Coverage classify(int boxMinX, int boxMinY, int boxMinZ, int boxMaxX, int boxMaxY, int boxMaxZ) {
+
+        if (boxMaxY < minY || boxMinY > maxY) return Coverage.OUTSIDE;
+
+        long near = square(nearest(centerX, boxMinX, boxMaxX)) + square(nearest(centerZ, boxMinZ, boxMaxZ));
+        if (near > radiusSquared) return Coverage.OUTSIDE;
+
+        long far = square(farthest(centerX, boxMinX, boxMaxX)) + square(farthest(centerZ, boxMinZ, boxMaxZ));
+        boolean spansHeight = boxMinY >= minY && boxMaxY <= maxY;
+
+        return far <= radiusSquared && spansHeight ? Coverage.INSIDE : Coverage.PARTIAL;
+
+      }
+
+    };
+
+  }
+
+  static Volume box(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+
+    var bounds = new Bounds(minX, minY, minZ, maxX, maxY, maxZ);
+
+    return new Volume() {
+
+      @Override
+      public boolean contains(int x, int y, int z) {
+        return x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ;
+      }
+
+      @Override
+      public Bounds bounds() {
+        return bounds;
+      }
+
+      @Override
+      public Coverage classify(int boxMinX, int boxMinY, int boxMinZ, int boxMaxX, int boxMaxY, int boxMaxZ) {
+
+        if (bounds.isEmpty() || boxMaxX < minX || boxMinX > maxX || boxMaxY < minY || boxMinY > maxY || boxMaxZ < minZ || boxMinZ > maxZ)
+          return Coverage.OUTSIDE;
+
+        boolean inside = boxMinX >= minX && boxMaxX <= maxX && boxMinY >= minY && boxMaxY <= maxY && boxMinZ >= minZ && boxMaxZ <= maxZ;
+        return inside ? Coverage.INSIDE : Coverage.PARTIAL;
+
+      }
+
+    };
+
+  }
+
+  private static int nearest(int center, int min, int max) {
+    return center < min ? min - center : center > max ? center - max : 0;
+  }
+
+  private static int farthest(int center, int min, int max) {
+    return Math.max(Math.abs(min - center), Math.abs(max - center));
+  }
+
+  private static long square(int value) {
+    return (long) value * value;
+  }
+
+  private static int ceilSqrt(int value) {
+    int root = (int) Math.sqrt(value);
+    return root * root < value ? root + 1 : root;
+  }
+
+}